@@ -1,5 +1,6 @@
 package com.vaguehope.s3toad;
 
+import java.io.File;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,6 +9,9 @@ import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.Option;
 
+import com.vaguehope.s3toad.tasks.Sync;
+import com.vaguehope.s3toad.util.ListingWriter;
+
 public class Args {
 
 	private static final String DEFAULT_REGION = "eu-west-1";
@@ -18,11 +22,28 @@ public class Args {
 	@Option(name = "--region", aliases = "-r", metaVar = "<count>", usage = "AWS region, default: " + DEFAULT_REGION) private String region;
 	@Option(name = "--chunksize", aliases = "-s", metaVar = "<count>", usage = "chunk size (bytes)") private long chunkSize;
 	@Option(name = "--threads", aliases = "-t", metaVar = "<count>", usage = "thread count") private int threadCount;
+	@Option(name = "--singleput", metaVar = "<bytes>", usage = "upload files smaller than this with a single PUT, at most 5 GB, default: chunk size (for copy of a prefix, copy objects smaller than this with one request, default: chunk size)") private long singlePutThreshold;
+	@Option(name = "--budget", metaVar = "<bytes>", usage = "max bytes of parts queued or in flight across all uploads (watch only), default: no limit") private long byteBudget;
+	@Option(name = "--adaptive", usage = "adapt parts in flight between 1 and --threads from observed throughput, latency and throttling (push, pull, watch)") private boolean adaptive;
 	@Option(name = "--controls", aliases = "-c", metaVar = "<count>", usage = "control thread count") private int controlCount;
 	@Option(name = "--expiry", aliases = "-e", metaVar = "<hours>", usage = "expiry (hours)") private int hours;
 	@Option(name = "--delete", usage = "delete files after upload") private boolean delete;
-	@Option(name = "--metadata", aliases = "-m", metaVar = "<metadata>", usage = "key=value metadata to add to files when uploading/copying, can be specified multiple times", multiValued = true) private List<String> metadata;
-	@Option(name = "--reverse", usage = "download files in reverse order (rpull only)") private boolean reverse;
+	@Option(name = "--hedge", usage = "send a duplicate request for any part or range running well past the p95 duration of those done, first to finish wins (pull only)") private boolean hedge;
+	@Option(name = "--resume", usage = "journal multipart uploads locally so an interrupted upload of an unchanged file resumes instead of starting again (push and watch)") private boolean resume;
+	@Option(name = "--index", usage = "keep a local index of completed transfers under ~/.s3toad/index and skip what it lists as done (rpull and watch)") private boolean index;
+	@Option(name = "--dryrun", usage = "list what would be copied without copying (copy of a prefix, set_metadata)") private boolean dryRun;
+	@Option(name = "--metadata", aliases = "-m", metaVar = "<metadata>", usage = "key=value metadata to add to files when uploading/copying/setting metadata, can be specified multiple times", multiValued = true) private List<String> metadata;
+	@Option(name = "--skipexisting", usage = "skip files that already exist in the bucket with the same size (push of a directory)") private boolean skipExisting;
+	@Option(name = "--compare", metaVar = "<size|mtime|etag>", usage = "how sync tells a file has changed, etag only matches multipart objects uploaded with the same --chunksize, default: mtime") private Sync.Compare compare;
+	@Option(name = "--listthreads", metaVar = "<count>", usage = "list this many partitions of the key space at once (list, du, diff, rpull, empty, sync, copy, set_metadata, metadata, url, push of a directory), default: 1") private int listThreads;
+	@Option(name = "--sorted", usage = "with --listthreads, print keys in order rather than as they are listed (list only)") private boolean sorted;
+	@Option(name = "--format", metaVar = "<tsv|json|binary>", usage = "output format (list only), default: tsv") private ListingWriter.Format format;
+	@Option(name = "--snapshot", metaVar = "<file>", usage = "write a compact sorted snapshot of the listing to this file, for diff (list only)") private String snapshot;
+	@Option(name = "--keys", metaVar = "<file>", usage = "read keys one per line from this file, or - for stdin, instead of a key or prefix (metadata, url)") private String keyFile;
+	@Option(name = "--older-than", metaVar = "<hours>", usage = "only multipart uploads started at least this many hours ago, so uploads still in progress are left alone (status, clean), default: 0") private int olderThanHours;
+	@Option(name = "--parts", usage = "list the parts of each upload to total the bytes they store (status only)") private boolean parts;
+	@Option(name = "--depth", metaVar = "<count>", usage = "levels of prefixes to total (du only), default: 1") private int depth;
+	@Option(name = "--reverse", usage = "download files in reverse order (rpull only, lists the whole prefix before starting)") private boolean reverse;
 	@Option(name = "--limit", usage = "max files to move (rpull only)") private int limit;
 	@Option(name = "--basepath", usage = "prefix local files with") private String basePath;
 
@@ -53,10 +74,18 @@ public class Args {
 		return this.region == null || this.region.length() < 1 ? DEFAULT_REGION : this.region;
 	}
 
+	public long getSinglePutThreshold (final long defVal) {
+		return this.singlePutThreshold < 1 ? defVal : this.singlePutThreshold;
+	}
+
 	public int getThreadCount (final int defVal) {
 		return this.threadCount < 1 ? defVal : this.threadCount;
 	}
 
+	public long getByteBudget (final long defVal) {
+		return this.byteBudget < 1 ? defVal : this.byteBudget;
+	}
+
 	public int getControlThreads (final int defVal) {
 		return this.controlCount < 1 ? defVal : this.controlCount;
 	}
@@ -85,6 +114,66 @@ public class Args {
 		return this.delete;
 	}
 
+	public boolean isAdaptive () {
+		return this.adaptive;
+	}
+
+	public boolean isHedge () {
+		return this.hedge;
+	}
+
+	public boolean isResume () {
+		return this.resume;
+	}
+
+	public boolean isSkipExisting () {
+		return this.skipExisting;
+	}
+
+	public Sync.Compare getCompare (final Sync.Compare defVal) {
+		return this.compare == null ? defVal : this.compare;
+	}
+
+	public int getListThreads (final int defVal) {
+		return this.listThreads < 1 ? defVal : this.listThreads;
+	}
+
+	public boolean isSorted () {
+		return this.sorted;
+	}
+
+	public ListingWriter.Format getFormat (final ListingWriter.Format defVal) {
+		return this.format == null ? defVal : this.format;
+	}
+
+	public File getSnapshot () {
+		return this.snapshot == null ? null : new File(this.snapshot);
+	}
+
+	public String getKeyFile () {
+		return this.keyFile;
+	}
+
+	public int getOlderThanHours (final int defVal) {
+		return this.olderThanHours < 1 ? defVal : this.olderThanHours;
+	}
+
+	public boolean isParts () {
+		return this.parts;
+	}
+
+	public int getDepth (final int defVal) {
+		return this.depth < 1 ? defVal : this.depth;
+	}
+
+	public boolean isDryRun () {
+		return this.dryRun;
+	}
+
+	public boolean isIndex () {
+		return this.index;
+	}
+
 	public boolean isReverse () {
 		return this.reverse;
 	}
@@ -100,9 +189,12 @@ public class Args {
 	public static enum Action {
 		HELP,
 		LIST,
+		DU,
+		DIFF,
 		PUSH,
 		PULL,
 		RPULL,
+		SYNC,
 		WATCH,
 		URL,
 		STATUS,
@@ -110,22 +202,33 @@ public class Args {
 		COPY,
 		EMPTY,
 		METADATA,
+		SET_METADATA,
 		ABORT_UPLOAD,
 		;
 		private static final String USAGE = "" +
 				"help\n" +
-				"list (bucket)\n" +
-				"push [local file path] [bucket]\n" +
+				"list (bucket) (prefix)\n" +
+				"du [bucket] (prefix)\n" +
+				"diff [snapshot] (snapshot | bucket (prefix))\n" +
+				"push [local file path or - for stdin (at most chunksize x 10000 bytes)] [bucket] (key)\n" +
+				"push [local dir path] [bucket] (prefix)\n" +
 				"watch [local dir path] [bucket]\n" +
 				"pull [bucket] [key]\n" +
 				"rpull [bucket] [prefix]\n" +
+				"sync [up|down] [local dir path] [bucket] (prefix)\n" +
 				"url [bucket] [key]\n" +
-				"status [bucket]\n" +
-				"clean [bucket]\n" +
+				"url [bucket] [prefix/]\n" +
+				"url [bucket] --keys [file]\n" +
+				"status [bucket] (prefix)\n" +
+				"clean [bucket] (prefix)\n" +
 				"copy [sourceBucket] [sourceKey] [destinationBucket] [destinationKey]\n" +
+				"copy [sourceBucket] [sourcePrefix/] [destinationBucket] (destinationPrefix/)\n" +
 				"empty [bucket]\n" +
 				"abort_upload [bucket] [key] [id]\n" +
-				"metadata [bucket] [key]"
+				"metadata [bucket] [key]\n" +
+				"metadata [bucket] [prefix/]\n" +
+				"metadata [bucket] --keys [file]\n" +
+				"set_metadata [bucket] [prefix] -m key=value"
 				;
 	}
 
@@ -5,7 +5,10 @@ public interface C {
 
 	String APPNAME = "s3toad";
 
-	int AWS_API_RETRY_DELAY_MILLES = 3;
+	int AWS_API_RETRY_MAX_ATTEMPTS = 5;
+	long AWS_API_RETRY_BASE_DELAY_MILLES = 100L;
+	long AWS_API_THROTTLE_BASE_DELAY_MILLES = 1000L;
+	long AWS_API_RETRY_MAX_DELAY_MILLES = 20000L;
 
 	void doNotImplement();
 
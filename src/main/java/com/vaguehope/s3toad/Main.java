@@ -1,25 +1,34 @@
 package com.vaguehope.s3toad;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.regions.ServiceAbbreviations;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.vaguehope.s3toad.tasks.BulkMetadata;
+import com.vaguehope.s3toad.tasks.BulkPreSignUrl;
 import com.vaguehope.s3toad.tasks.Clean;
+import com.vaguehope.s3toad.tasks.CopyRecursive;
+import com.vaguehope.s3toad.tasks.Diff;
+import com.vaguehope.s3toad.tasks.DiskUsage;
 import com.vaguehope.s3toad.tasks.DownloadRecursive;
 import com.vaguehope.s3toad.tasks.DownloadSimple;
 import com.vaguehope.s3toad.tasks.EmptyBucket;
@@ -28,9 +37,18 @@ import com.vaguehope.s3toad.tasks.ListBucket;
 import com.vaguehope.s3toad.tasks.ListBuckets;
 import com.vaguehope.s3toad.tasks.PreSignUrl;
 import com.vaguehope.s3toad.tasks.Status;
+import com.vaguehope.s3toad.tasks.Sync;
 import com.vaguehope.s3toad.tasks.UploadMulti;
+import com.vaguehope.s3toad.tasks.UploadRecursive;
 import com.vaguehope.s3toad.tasks.WatchUpload;
+import com.vaguehope.s3toad.util.AimdLimiter;
+import com.vaguehope.s3toad.util.KeyFileReader;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.ListingWriter;
 import com.vaguehope.s3toad.util.LogHelper;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.S3Helper;
+import com.vaguehope.s3toad.util.SnapshotReader;
 
 public class Main {
 
@@ -49,6 +67,8 @@ public class Main {
 			parser.parseArgument(rawArgs);
 
 			final ClientConfiguration clientConfiguration = new ClientConfiguration();
+			// RetryPolicy is the only retry layer, SDK retries would multiply its attempts and bypass its budget.
+			clientConfiguration.setRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
 			findProxy(clientConfiguration);
 			final Region region = Region.getRegion(Regions.fromName(args.getRegion()));
 			System.err.println("region=" + region.getName());
@@ -58,6 +78,12 @@ public class Main {
 				case LIST:
 					doList(args);
 					break;
+				case DU:
+					doDu(args);
+					break;
+				case DIFF:
+					doDiff(args);
+					break;
 				case PUSH:
 					doPush(args);
 					break;
@@ -70,6 +96,9 @@ public class Main {
 				case RPULL:
 					doRpull(args);
 					break;
+				case SYNC:
+					doSync(args);
+					break;
 				case URL:
 					doUrl(args);
 					break;
@@ -88,6 +117,9 @@ public class Main {
 				case METADATA:
 					doMetadata(args);
 					break;
+				case SET_METADATA:
+					doSetMetadata(args);
+					break;
 				case ABORT_UPLOAD:
 					doAbort(args);
 					break;
@@ -128,31 +160,165 @@ public class Main {
 		ps.println();
 	}
 
-	private void doLargeCopy (final Args args) throws CmdLineException, InterruptedException, ExecutionException {
+	private void doLargeCopy (final Args args) throws Exception {
 		final String sourceBucket = args.getArg(0, true);
 		final String sourceKey = args.getArg(1, true);
 		final String destinationBucket = args.getArg(2, true);
-		final String destinationKey = args.getArg(3, true);
 		final Map<String, String> metadata = args.getMetadata();
+
+		if (sourceKey.endsWith("/")) {
+			doCopyRecursive(args, sourceBucket, sourceKey, destinationBucket, metadata);
+			return;
+		}
+
+		final String destinationKey = args.getArg(3, true);
 		args.minArgs(4);
+		final int threads = args.getThreadCount(LargeCopy.DEFAULT_THREADS);
+		final long partSize = args.getChunkSize(LargeCopy.DEFAULT_PART_SIZE);
 
-		new LargeCopy(this.s3Client, sourceBucket, sourceKey, destinationBucket, destinationKey, metadata).call();
+		System.err.println("threads=" + threads);
+		System.err.println("partSize=" + partSize);
+
+		new LargeCopy(this.s3Client, sourceBucket, sourceKey, destinationBucket, destinationKey, threads, partSize, metadata).call();
 	}
 
-	private void doList (final Args args) throws CmdLineException {
+	private void doCopyRecursive (final Args args, final String sourceBucket, final String sourcePrefix, final String destinationBucket, final Map<String, String> metadata) throws Exception {
+		final String destinationArg = args.getArg(3, false);
+		final String destinationPrefix = destinationArg != null ? destinationArg : sourcePrefix;
+		args.maxArgs(4);
+		if (CopyRecursive.overlaps(sourceBucket, sourcePrefix, destinationBucket, destinationPrefix)) {
+			throw new CmdLineException(null, "Destination must not be the source prefix or under it, use set_metadata to change metadata in place.");
+		}
+		final int threads = args.getThreadCount(1);
+		final int listThreads = args.getListThreads(1);
+		final long partSize = args.getChunkSize(LargeCopy.DEFAULT_PART_SIZE);
+		final long singleCopyThreshold = args.getSinglePutThreshold(partSize);
+
+		System.err.println("sourceBucket=" + sourceBucket);
+		System.err.println("sourcePrefix=" + sourcePrefix);
+		System.err.println("destinationBucket=" + destinationBucket);
+		System.err.println("destinationPrefix=" + destinationPrefix);
+		System.err.println("threads=" + threads);
+		System.err.println("listThreads=" + listThreads);
+		System.err.println("partSize=" + partSize);
+		System.err.println("singleCopyThreshold=" + singleCopyThreshold);
+		System.err.println("metadata=" + metadata);
+		System.err.println("dryRun=" + args.isDryRun());
+
+		final CopyRecursive c = new CopyRecursive(this.s3Client, sourceBucket, sourcePrefix, destinationBucket, destinationPrefix, threads, partSize, metadata);
+		c.setSingleCopyThreshold(singleCopyThreshold);
+		c.setListThreads(listThreads);
+		c.setDryRun(args.isDryRun());
+		c.run();
+	}
+
+	/**
+	 * A copy of each object onto itself, which S3 allows when the metadata is replaced.
+	 */
+	private void doSetMetadata (final Args args) throws Exception {
+		final String bucket = args.getArg(0, true);
+		final String prefix = args.getArg(1, true);
+		args.maxArgs(2);
+		final Map<String, String> metadata = args.getMetadata();
+		if (metadata.isEmpty()) throw new CmdLineException(null, "At least one --metadata key=value is required.");
+		final int threads = args.getThreadCount(1);
+		final int listThreads = args.getListThreads(1);
+		final long partSize = args.getChunkSize(LargeCopy.DEFAULT_PART_SIZE);
+		final long singleCopyThreshold = args.getSinglePutThreshold(CopyRecursive.MAX_SINGLE_COPY);
+
+		System.err.println("bucket=" + bucket);
+		System.err.println("prefix=" + prefix);
+		System.err.println("threads=" + threads);
+		System.err.println("listThreads=" + listThreads);
+		System.err.println("partSize=" + partSize);
+		System.err.println("singleCopyThreshold=" + singleCopyThreshold);
+		System.err.println("metadata=" + metadata);
+		System.err.println("dryRun=" + args.isDryRun());
+
+		final CopyRecursive c = new CopyRecursive(this.s3Client, bucket, prefix, bucket, prefix, threads, partSize, metadata);
+		c.setInPlace(true);
+		c.setSingleCopyThreshold(singleCopyThreshold);
+		c.setListThreads(listThreads);
+		c.setDryRun(args.isDryRun());
+		c.run();
+	}
+
+	private void doList (final Args args) throws Exception {
 		String bucket = args.getArg(0, false);
 		String prefix = args.getArg(1, false);
 		args.maxArgs(2);
 		if (bucket != null) {
 			System.err.println("bucket=" + bucket);
 			System.err.println("prefix=" + prefix);
-			new ListBucket(this.s3Client, bucket, prefix).run();
+			final int listThreads = args.getListThreads(1);
+			System.err.println("listThreads=" + listThreads);
+			final File snapshot = args.getSnapshot();
+			if (snapshot != null) System.err.println("snapshot=" + snapshot.getAbsolutePath());
+			final ListBucket l = new ListBucket(this.s3Client, bucket, prefix, listThreads, args.isSorted());
+			l.setFormat(args.getFormat(ListingWriter.Format.TSV));
+			l.setSnapshot(snapshot);
+			l.run();
 		}
 		else {
 			new ListBuckets(this.s3Client).run();
 		}
 	}
 
+	private void doDu (final Args args) throws Exception {
+		final String bucket = args.getArg(0, true);
+		final String prefix = args.getArg(1, false);
+		args.maxArgs(2);
+		final int depth = args.getDepth(1);
+		final int listThreads = args.getListThreads(1);
+
+		System.err.println("bucket=" + bucket);
+		System.err.println("prefix=" + prefix);
+		System.err.println("depth=" + depth);
+		System.err.println("listThreads=" + listThreads);
+
+		new DiskUsage(this.s3Client, bucket, prefix, depth, listThreads).run();
+	}
+
+	private void doDiff (final Args args) throws Exception {
+		final File beforeFile = new File(args.getArg(0, true));
+		final String other = args.getArg(1, false);
+		args.maxArgs(3);
+
+		final SnapshotReader before = new SnapshotReader(beforeFile);
+		try {
+			System.err.println("before=" + beforeFile.getAbsolutePath());
+			if (other != null && SnapshotReader.isSnapshot(new File(other))) {
+				args.maxArgs(2);
+				final SnapshotReader after = new SnapshotReader(new File(other));
+				try {
+					System.err.println("after=" + new File(other).getAbsolutePath());
+					new Diff(before, after).run();
+				}
+				finally {
+					after.close();
+				}
+			}
+			else {
+				final String bucket = other != null ? other : before.getBucket();
+				final String prefix = other != null ? args.getArg(2, false) : before.getPrefix();
+				final int listThreads = args.getListThreads(1);
+				System.err.println("bucket=" + bucket);
+				System.err.println("prefix=" + prefix);
+				System.err.println("listThreads=" + listThreads);
+				final KeyListing after = S3Helper.listKeys(this.s3Client, bucket, prefix, listThreads, true);
+				try {
+					new Diff(before, after).run();
+				}
+				finally {
+					after.stop();
+				}
+			}
+		}
+		finally {
+			before.close();
+		}
+	}
+
 	private void doPush (final Args args) throws Exception {
 		final String filepath = args.getArg(0, true);
 		final String bucket = args.getArg(1, true);
@@ -161,12 +327,38 @@ public class Main {
 		final Map<String, String> metadata = args.getMetadata();
 		final int threads = args.getThreadCount(1);
 		final long chunkSize = args.getChunkSize(UploadMulti.DEFAULT_CHUNK_SIZE);
+		final long singlePutThreshold = args.getSinglePutThreshold(chunkSize);
+
+		if ("-".equals(filepath)) {
+			if (key == null) throw new CmdLineException(null, "Key is required when reading from stdin.");
+			System.err.println("file=<stdin>");
+			System.err.println("bucket=" + bucket);
+			System.err.println("key=" + key);
+			System.err.println("threads=" + threads);
+			System.err.println("chunkSize=" + chunkSize);
+			System.err.println("maxStreamSize=" + chunkSize * UploadMulti.MAX_PARTS);
+
+			UploadMulti u = new UploadMulti(this.s3Client, System.in, bucket, key, threads, chunkSize, metadata);
+			u.setSinglePutThreshold(singlePutThreshold);
+			u.setConcurrencyLimiter(makeLimiter(args, threads));
+			try {
+				u.run();
+			}
+			finally {
+				u.dispose();
+			}
+			return;
+		}
 
 		final File file = new File(filepath);
 		if (!file.exists()) {
 			System.err.println("File not found: " + file.getAbsolutePath());
 			return;
 		}
+		if (file.isDirectory()) {
+			doPushDir(args, file.getCanonicalFile(), bucket, key, metadata, threads, chunkSize, singlePutThreshold);
+			return;
+		}
 		if (key == null) key = file.getName();
 
 		System.err.println("file=" + file.getAbsolutePath());
@@ -174,8 +366,13 @@ public class Main {
 		System.err.println("key=" + key);
 		System.err.println("threads=" + threads);
 		System.err.println("chunkSize=" + chunkSize);
+		System.err.println("singlePutThreshold=" + singlePutThreshold);
+		System.err.println("resume=" + args.isResume());
 
 		UploadMulti u = new UploadMulti(this.s3Client, file, bucket, key, threads, chunkSize, metadata);
+		u.setSinglePutThreshold(singlePutThreshold);
+		u.setResumable(args.isResume());
+		u.setConcurrencyLimiter(makeLimiter(args, threads));
 		try {
 			u.run();
 		}
@@ -184,13 +381,39 @@ public class Main {
 		}
 	}
 
-	private void doAbort(final Args args) throws CmdLineException {
+	private void doPushDir (final Args args, final File dir, final String bucket, final String prefix, final Map<String, String> metadata,
+			final int threads, final long chunkSize, final long singlePutThreshold) throws Exception {
+		System.err.println("dir=" + dir.getAbsolutePath());
+		System.err.println("bucket=" + bucket);
+		System.err.println("prefix=" + (prefix != null ? prefix : ""));
+		System.err.println("threads=" + threads);
+		System.err.println("chunkSize=" + chunkSize);
+		System.err.println("singlePutThreshold=" + singlePutThreshold);
+		System.err.println("skipExisting=" + args.isSkipExisting());
+		System.err.println("resume=" + args.isResume());
+
+		final UploadRecursive u = new UploadRecursive(this.s3Client, dir, bucket, prefix, threads, chunkSize, metadata);
+		u.setSinglePutThreshold(singlePutThreshold);
+		u.setSkipExisting(args.isSkipExisting());
+		u.setListThreads(args.getListThreads(1));
+		u.setResumable(args.isResume());
+		u.setConcurrencyLimiter(makeLimiter(args, threads));
+		u.run();
+	}
+
+	private void doAbort(final Args args) throws Exception {
 		final String bucket = args.getArg(0, true);
 		final String key = args.getArg(1, true);
 		final String id = args.getArg(2, true);
 		args.maxArgs(3);
-		AbortMultipartUploadRequest request = new AbortMultipartUploadRequest(bucket, key, id);
-		this.s3Client.abortMultipartUpload(request);
+		final AbortMultipartUploadRequest request = new AbortMultipartUploadRequest(bucket, key, id);
+		RetryPolicy.shared().call("abortMultipartUpload", new Callable<Void>() {
+			@Override
+			public Void call() {
+				Main.this.s3Client.abortMultipartUpload(request);
+				return null;
+			}
+		});
 	}
 
 	private void doWatch (final Args args) throws Exception {
@@ -200,6 +423,8 @@ public class Main {
 		final int workerThreads = args.getThreadCount(1);
 		final int controlTrheads = args.getControlThreads(1);
 		final long chunkSize = args.getChunkSize(UploadMulti.DEFAULT_CHUNK_SIZE);
+		final long singlePutThreshold = args.getSinglePutThreshold(chunkSize);
+		final long byteBudget = args.getByteBudget(0);
 		final boolean deleteAfter = args.getDelete();
 
 		final File dir = new File(dirpath).getCanonicalFile();
@@ -213,9 +438,16 @@ public class Main {
 		System.err.println("workerThreads=" + workerThreads);
 		System.err.println("controlThreads=" + controlTrheads);
 		System.err.println("chunkSize=" + chunkSize);
+		System.err.println("singlePutThreshold=" + singlePutThreshold);
+		System.err.println("byteBudget=" + byteBudget);
 		System.err.println("deleteAfter=" + deleteAfter);
+		System.err.println("resume=" + args.isResume());
+		System.err.println("index=" + args.isIndex());
 
-		WatchUpload u = new WatchUpload(this.s3Client, dir, bucket, workerThreads, controlTrheads, chunkSize, deleteAfter);
+		WatchUpload u = new WatchUpload(this.s3Client, dir, bucket, workerThreads, controlTrheads, chunkSize, singlePutThreshold, byteBudget, deleteAfter);
+		u.setResumable(args.isResume());
+		u.setIndexed(args.isIndex());
+		u.setConcurrencyLimiter(makeLimiter(args, workerThreads));
 		try {
 			u.run();
 		}
@@ -224,36 +456,104 @@ public class Main {
 		}
 	}
 
-	private void doPull (final Args args) throws CmdLineException, InterruptedException {
+	private void doPull (final Args args) throws Exception {
 		final String bucket = args.getArg(0, true);
 		final String key = args.getArg(1, true);
 		args.maxArgs(2);
+		final int threads = args.getThreadCount(1);
+		final long chunkSize = args.getChunkSize(UploadMulti.DEFAULT_CHUNK_SIZE);
 
 		System.err.println("bucket=" + bucket);
 		System.err.println("key=" + key);
+		System.err.println("threads=" + threads);
+		System.err.println("chunkSize=" + chunkSize);
+		System.err.println("hedge=" + args.isHedge());
 
-		new DownloadSimple(this.s3Client, bucket, key).run();
+		final DownloadSimple d = new DownloadSimple(this.s3Client, bucket, key, threads, chunkSize);
+		d.setConcurrencyLimiter(makeLimiter(args, threads));
+		d.setHedging(args.isHedge());
+		d.run();
 	}
 
-	private void doRpull (final Args args) throws CmdLineException, InterruptedException, IOException {
+	private void doRpull (final Args args) throws Exception {
 		final String bucket = args.getArg(0, true);
 		final String prefix = args.getArg(1, true);
 		args.maxArgs(2);
 		final boolean reverse = args.isReverse();
 		final long limit = args.getLimit(-1);
+		final int threads = args.getThreadCount(1);
+		final int listThreads = args.getListThreads(1);
 
 		System.err.println("bucket=" + bucket);
 		System.err.println("prefix=" + prefix);
 		System.err.println("reverse=" + reverse);
 		System.err.println("limit=" + limit);
+		System.err.println("threads=" + threads);
+		System.err.println("listThreads=" + listThreads);
+		System.err.println("index=" + args.isIndex());
+
+		final DownloadRecursive d = new DownloadRecursive(this.s3Client, bucket, prefix, reverse, limit, args.getBasePath(), threads, listThreads);
+		d.setIndexed(args.isIndex());
+		d.run();
+	}
+
+	private void doSync (final Args args) throws Exception {
+		final String directionArg = args.getArg(0, true);
+		final String dirpath = args.getArg(1, true);
+		final String bucket = args.getArg(2, true);
+		final String prefix = args.getArg(3, false);
+		args.maxArgs(4);
+		final Sync.Direction direction;
+		if ("up".equalsIgnoreCase(directionArg)) {
+			direction = Sync.Direction.UP;
+		}
+		else if ("down".equalsIgnoreCase(directionArg)) {
+			direction = Sync.Direction.DOWN;
+		}
+		else {
+			throw new CmdLineException(null, "Direction must be up or down: " + directionArg);
+		}
+		final int threads = args.getThreadCount(1);
+		final long chunkSize = args.getChunkSize(UploadMulti.DEFAULT_CHUNK_SIZE);
+		final long singlePutThreshold = args.getSinglePutThreshold(chunkSize);
+		final Sync.Compare compare = args.getCompare(Sync.Compare.MTIME);
+
+		final File dir = new File(dirpath).getCanonicalFile();
+		if (direction == Sync.Direction.UP && !dir.isDirectory()) {
+			System.err.println("Dir not found: " + dir.getAbsolutePath());
+			return;
+		}
 
-		new DownloadRecursive(this.s3Client, bucket, prefix, reverse, limit, args.getBasePath()).run();
+		System.err.println("direction=" + direction);
+		System.err.println("dir=" + dir.getAbsolutePath());
+		System.err.println("bucket=" + bucket);
+		System.err.println("prefix=" + (prefix != null ? prefix : ""));
+		System.err.println("threads=" + threads);
+		System.err.println("chunkSize=" + chunkSize);
+		System.err.println("compare=" + compare);
+
+		final Sync s = new Sync(this.s3Client, direction, dir, bucket, prefix, threads, chunkSize, compare, args.getMetadata());
+		s.setSinglePutThreshold(singlePutThreshold);
+		s.setListThreads(args.getListThreads(1));
+		s.run();
 	}
 
-	private void doUrl (final Args args) throws CmdLineException {
+	private void doUrl (final Args args) throws Exception {
 		final String bucket = args.getArg(0, true);
+		final String keyFile = args.getKeyFile();
+		if (keyFile != null) {
+			args.maxArgs(1);
+			doBulkUrl(args, bucket, null, keyFile);
+			return;
+		}
+
 		final String key = args.getArg(1, true);
 		args.maxArgs(2);
+		if (key.endsWith("/")) {
+			doBulkUrl(args, bucket, key, null);
+			return;
+		}
+
 		final int hours = args.getHours(1);
 
 		System.err.println("bucket=" + bucket);
@@ -263,36 +563,149 @@ public class Main {
 		new PreSignUrl(this.s3Client, bucket, key, hours).run();
 	}
 
-	private void doMetadata(final Args args) throws CmdLineException {
-		String bucket = args.getArg(0, true);
-		String key = args.getArg(1, true);
+	/**
+	 * Exactly one of prefix and keyFile.  Signs locally, with a key file nothing is requested from S3.
+	 */
+	private void doBulkUrl (final Args args, final String bucket, final String prefix, final String keyFile) throws Exception {
+		final int hours = args.getHours(1);
+		final int threads = args.getThreadCount(Runtime.getRuntime().availableProcessors());
+		final int listThreads = args.getListThreads(1);
+		final Region region = Region.getRegion(Regions.fromName(args.getRegion()));
+		final String endpoint = region.getServiceEndpoint(ServiceAbbreviations.S3).replaceFirst("^https?://", "");
+
+		System.err.println("bucket=" + bucket);
+		if (prefix != null) System.err.println("prefix=" + prefix);
+		if (keyFile != null) System.err.println("keys=" + keyFile);
+		System.err.println("hours=" + hours);
+		System.err.println("threads=" + threads);
+		System.err.println("endpoint=" + endpoint);
+
+		final AWSCredentialsProvider credentials = new DefaultAWSCredentialsProviderChain();
+		if (keyFile != null) {
+			final KeyFileReader keys = new KeyFileReader(keyFile);
+			try {
+				new BulkPreSignUrl(credentials, region.getName(), endpoint, bucket, keys, hours, threads).run();
+			}
+			finally {
+				keys.close();
+			}
+		}
+		else {
+			final KeyListing listing = S3Helper.listKeys(this.s3Client, bucket, prefix, listThreads, false);
+			try {
+				new BulkPreSignUrl(credentials, region.getName(), endpoint, bucket, S3Helper.keysOf(listing), hours, threads).run();
+			}
+			finally {
+				listing.stop();
+			}
+		}
+	}
+
+	private void doMetadata(final Args args) throws Exception {
+		final String bucket = args.getArg(0, true);
+		final String keyFile = args.getKeyFile();
+		if (keyFile != null) {
+			args.maxArgs(1);
+			doBulkMetadata(args, bucket, null, keyFile);
+			return;
+		}
+
+		final String key = args.getArg(1, true);
 		args.maxArgs(2);
+		if (key.endsWith("/")) {
+			doBulkMetadata(args, bucket, key, null);
+			return;
+		}
 
-		ObjectMetadata metadata = this.s3Client.getObjectMetadata(bucket, key);
+		ObjectMetadata metadata = RetryPolicy.shared().call("getObjectMetadata", new Callable<ObjectMetadata>() {
+			@Override
+			public ObjectMetadata call() {
+				return Main.this.s3Client.getObjectMetadata(bucket, key);
+			}
+		});
 		for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
 			System.err.println(entry.getKey() + "=" + entry.getValue());
 		}
 	}
 
-	private void doStatus (final Args args) throws CmdLineException {
+	/**
+	 * Exactly one of prefix and keyFile.
+	 */
+	private void doBulkMetadata(final Args args, final String bucket, final String prefix, final String keyFile) throws Exception {
+		final int threads = args.getThreadCount(1);
+		final int listThreads = args.getListThreads(1);
+
+		System.err.println("bucket=" + bucket);
+		if (prefix != null) System.err.println("prefix=" + prefix);
+		if (keyFile != null) System.err.println("keys=" + keyFile);
+		System.err.println("threads=" + threads);
+		if (prefix != null) System.err.println("listThreads=" + listThreads);
+
+		if (keyFile != null) {
+			final KeyFileReader keys = new KeyFileReader(keyFile);
+			try {
+				new BulkMetadata(this.s3Client, bucket, keys, threads).run();
+			}
+			finally {
+				keys.close();
+			}
+		}
+		else {
+			final KeyListing listing = S3Helper.listKeys(this.s3Client, bucket, prefix, listThreads, false);
+			try {
+				new BulkMetadata(this.s3Client, bucket, S3Helper.keysOf(listing), threads).run();
+			}
+			finally {
+				listing.stop();
+			}
+		}
+	}
+
+	private void doStatus (final Args args) throws Exception {
 		String bucket = args.getArg(0, true);
-		args.maxArgs(1);
+		String prefix = args.getArg(1, false);
+		args.maxArgs(2);
+		final int threads = args.getThreadCount(1);
+		final int olderThanHours = args.getOlderThanHours(0);
+		final boolean parts = args.isParts();
 		System.err.println("bucket=" + bucket);
-		new Status(this.s3Client, bucket).run();
+		System.err.println("prefix=" + prefix);
+		System.err.println("threads=" + threads);
+		System.err.println("olderThanHours=" + olderThanHours);
+		System.err.println("parts=" + parts);
+		final Status status = new Status(this.s3Client, bucket, prefix, threads, TimeUnit.HOURS.toMillis(olderThanHours));
+		status.setCountParts(parts);
+		status.run();
 	}
 
-	private void doClean (final Args args) throws CmdLineException {
+	private void doClean (final Args args) throws Exception {
 		String bucket = args.getArg(0, true);
-		args.maxArgs(1);
+		String prefix = args.getArg(1, false);
+		args.maxArgs(2);
+		final int threads = args.getThreadCount(1);
+		final int olderThanHours = args.getOlderThanHours(0);
 		System.err.println("bucket=" + bucket);
-		new Clean(this.s3Client, bucket).run();
+		System.err.println("prefix=" + prefix);
+		System.err.println("threads=" + threads);
+		System.err.println("olderThanHours=" + olderThanHours);
+		new Clean(this.s3Client, bucket, prefix, threads, TimeUnit.HOURS.toMillis(olderThanHours)).run();
 	}
 
-	private void doEmpty (final Args args) throws CmdLineException {
+	private void doEmpty (final Args args) throws Exception {
 		String bucket = args.getArg(0, true);
 		args.maxArgs(1);
+		final int threads = args.getThreadCount(1);
+		final int listThreads = args.getListThreads(1);
 		System.err.println("bucket=" + bucket);
-		new EmptyBucket(this.s3Client, bucket).run();
+		System.err.println("threads=" + threads);
+		System.err.println("listThreads=" + listThreads);
+		new EmptyBucket(this.s3Client, bucket, threads, listThreads).run();
+	}
+
+	private static AimdLimiter makeLimiter (final Args args, final int threads) {
+		if (!args.isAdaptive()) return null;
+		System.err.println("adaptive=1.." + threads);
+		return new AimdLimiter(1, threads);
 	}
 
 	private static void findProxy (final ClientConfiguration clientConfiguration) throws MalformedURLException {
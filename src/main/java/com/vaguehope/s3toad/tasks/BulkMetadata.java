@@ -0,0 +1,165 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.JsonHelper;
+import com.vaguehope.s3toad.util.RetryPolicy;
+
+/**
+ * HEAD many keys at once, printing each object's metadata to stdout as a JSON line, in the order they complete:
+ * <pre>
+ * {"key":"...","size":n,"mtime":n,"etag":"...","contentType":"...","metadata":{"k":"v"}}
+ * {"key":"...","error":"..."}
+ * </pre>
+ * A key that can not be read gets an error line rather than stopping the rest.
+ */
+public class BulkMetadata {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BulkMetadata.class);
+	private static final RetryPolicy RETRY = RetryPolicy.shared();
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final Iterator<String> keys;
+	private final int threads;
+
+	/**
+	 * @param keys read on the calling thread, as fast as HEADs complete.
+	 */
+	public BulkMetadata(final AmazonS3 s3Client, final String bucket, final Iterator<String> keys, final int threads) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.keys = keys;
+		this.threads = threads;
+	}
+
+	public void run() throws Exception {
+		// Not System.out, which flushes every line.
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), "UTF-8"), 64 * 1024);
+		final ExecutorService executor = ExecutorFactory.newFixedThreadPool("head", this.threads);
+		final Semaphore inFlight = new Semaphore(this.threads);
+		final AtomicLong headCount = new AtomicLong(0);
+		final AtomicLong errorCount = new AtomicLong(0);
+		final long startTime = System.currentTimeMillis();
+		try {
+			while (this.keys.hasNext()) {
+				final String key = this.keys.next();
+				inFlight.acquire();
+				executor.execute(new Head(key, out, inFlight, headCount, errorCount));
+			}
+			inFlight.acquire(this.threads);
+			inFlight.release(this.threads);
+		}
+		finally {
+			executor.shutdownNow();
+			synchronized (out) {
+				out.flush();
+			}
+		}
+
+		final long millis = Math.max(1, System.currentTimeMillis() - startTime);
+		LOG.info("heads={} errors={} duration={}s heads/s={}",
+				headCount.get(), errorCount.get(), TimeUnit.MILLISECONDS.toSeconds(millis), headCount.get() * 1000L / millis);
+	}
+
+	private static void writeMetadata(final Writer w, final String key, final ObjectMetadata m) throws IOException {
+		w.write("{\"key\":");
+		JsonHelper.writeString(w, key);
+		w.write(",\"size\":");
+		w.write(String.valueOf(m.getContentLength()));
+		w.write(",\"mtime\":");
+		w.write(m.getLastModified() != null ? String.valueOf(m.getLastModified().getTime()) : "null");
+		w.write(",\"etag\":");
+		JsonHelper.writeString(w, m.getETag());
+		w.write(",\"contentType\":");
+		JsonHelper.writeString(w, m.getContentType());
+		w.write(",\"metadata\":{");
+		boolean first = true;
+		for (final Map.Entry<String, String> e : m.getUserMetadata().entrySet()) {
+			if (!first) w.write(',');
+			JsonHelper.writeString(w, e.getKey());
+			w.write(':');
+			JsonHelper.writeString(w, e.getValue());
+			first = false;
+		}
+		w.write("}}\n");
+	}
+
+	private static void writeError(final Writer w, final String key, final Exception e) throws IOException {
+		w.write("{\"key\":");
+		JsonHelper.writeString(w, key);
+		w.write(",\"error\":");
+		JsonHelper.writeString(w, e.getMessage() != null ? e.getMessage() : e.toString());
+		w.write("}\n");
+	}
+
+	private class Head implements Runnable {
+
+		private final String key;
+		private final Writer out;
+		private final Semaphore inFlight;
+		private final AtomicLong headCount;
+		private final AtomicLong errorCount;
+
+		public Head(final String key, final Writer out, final Semaphore inFlight, final AtomicLong headCount, final AtomicLong errorCount) {
+			this.key = key;
+			this.out = out;
+			this.inFlight = inFlight;
+			this.headCount = headCount;
+			this.errorCount = errorCount;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// Formatted outside the lock so only the copy into the buffer is serialised.
+				final StringWriter line = new StringWriter(256);
+				try {
+					final ObjectMetadata m = RETRY.call("getObjectMetadata " + this.key, new Callable<ObjectMetadata>() {
+						@Override
+						public ObjectMetadata call() {
+							return BulkMetadata.this.s3Client.getObjectMetadata(BulkMetadata.this.bucket, Head.this.key);
+						}
+					});
+					writeMetadata(line, this.key, m);
+					this.headCount.incrementAndGet();
+				}
+				catch (Exception e) {
+					LOG.warn("Failed to get metadata for {}: {}", this.key, e.toString());
+					writeError(line, this.key, e);
+					this.errorCount.incrementAndGet();
+				}
+				synchronized (this.out) {
+					this.out.write(line.toString());
+				}
+			}
+			catch (IOException e) {
+				LOG.error("Failed to write metadata for {}: {}", this.key, e.toString());
+			}
+			finally {
+				this.inFlight.release();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.UrlSigner;
+
+/**
+ * Presign GET URLs for many keys, signing locally across a pool of threads with no requests to S3.
+ * Prints [key]\t[url] per key to stdout, in the order the keys were given.
+ */
+public class BulkPreSignUrl {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BulkPreSignUrl.class);
+	private static final int BATCH_SIZE = 8192;
+
+	private final AWSCredentialsProvider credentialsProvider;
+	private final String region;
+	private final String endpoint;
+	private final String bucket;
+	private final Iterator<String> keys;
+	private final int hours;
+	private final int threads;
+
+	/**
+	 * @param endpoint host of the region's S3 endpoint.
+	 */
+	public BulkPreSignUrl(final AWSCredentialsProvider credentialsProvider, final String region, final String endpoint,
+			final String bucket, final Iterator<String> keys, final int hours, final int threads) {
+		this.credentialsProvider = credentialsProvider;
+		this.region = region;
+		this.endpoint = endpoint;
+		this.bucket = bucket;
+		this.keys = keys;
+		this.hours = hours;
+		this.threads = threads;
+	}
+
+	public void run() throws Exception {
+		final long expirySeconds = TimeUnit.HOURS.toSeconds(this.hours);
+		final ThreadLocal<UrlSigner> signers = new ThreadLocal<UrlSigner>() {
+			@Override
+			protected UrlSigner initialValue() {
+				return new UrlSigner(BulkPreSignUrl.this.region, BulkPreSignUrl.this.endpoint);
+			}
+		};
+
+		// Not System.out, which flushes every line.
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), "UTF-8"), 64 * 1024);
+		final ExecutorService executor = ExecutorFactory.newFixedThreadPool("sign", this.threads);
+		long count = 0;
+		final long startTime = System.currentTimeMillis();
+		try {
+			final String[] batch = new String[BATCH_SIZE];
+			final String[] urls = new String[BATCH_SIZE];
+			while (this.keys.hasNext()) {
+				int n = 0;
+				while (n < BATCH_SIZE && this.keys.hasNext()) {
+					batch[n++] = this.keys.next();
+				}
+
+				// Fetched per batch so expiring credentials, e.g. from an instance profile, get refreshed.
+				final AWSCredentials credentials = this.credentialsProvider.getCredentials();
+				final Date now = new Date();
+				final int sliceSize = (n + this.threads - 1) / this.threads;
+				final List<Future<Void>> slices = new ArrayList<Future<Void>>();
+				for (int from = 0; from < n; from += sliceSize) {
+					final int start = from;
+					final int end = Math.min(n, from + sliceSize);
+					slices.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() {
+							final UrlSigner signer = signers.get();
+							for (int i = start; i < end; i++) {
+								urls[i] = signer.sign(credentials, BulkPreSignUrl.this.bucket, batch[i], now, expirySeconds);
+							}
+							return null;
+						}
+					}));
+				}
+				for (final Future<Void> f : slices) {
+					f.get();
+				}
+
+				for (int i = 0; i < n; i++) {
+					out.write(batch[i]);
+					out.write('\t');
+					out.write(urls[i]);
+					out.write('\n');
+				}
+				count += n;
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			out.flush();
+		}
+
+		final long millis = Math.max(1, System.currentTimeMillis() - startTime);
+		LOG.info("signed={} duration={}s urls/s={}", count, TimeUnit.MILLISECONDS.toSeconds(millis), count * 1000L / millis);
+	}
+
+}
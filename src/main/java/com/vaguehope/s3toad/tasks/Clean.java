@@ -1,32 +1,119 @@
 package com.vaguehope.s3toad.tasks;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
 import com.amazonaws.services.s3.model.MultipartUpload;
 import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.S3Helper;
 
+/**
+ * Abort incomplete multipart uploads, every page of them, several at once.
+ */
 public class Clean {
 
 	private final AmazonS3 s3Client;
 	private final String bucket;
+	private final String prefix;
+	private final int threads;
+	private final long olderThanMillis;
 
 	public Clean (AmazonS3 s3Client, String bucket) {
+		this(s3Client, bucket, null, 1, 0);
+	}
+
+	/**
+	 * @param prefix only uploads of keys with this prefix, may be null.
+	 * @param olderThanMillis only uploads started at least this long ago, so uploads still in progress are left alone.
+	 */
+	public Clean (AmazonS3 s3Client, String bucket, String prefix, int threads, long olderThanMillis) {
 		this.s3Client = s3Client;
 		this.bucket = bucket;
+		this.prefix = prefix;
+		this.threads = threads;
+		this.olderThanMillis = olderThanMillis;
 	}
 
-	public void run () {
-		MultipartUploadListing listMultipartUploads = this.s3Client.listMultipartUploads(new ListMultipartUploadsRequest(this.bucket));
-		System.err.println("uploads=" + listMultipartUploads.getMultipartUploads().size());
-		for (MultipartUpload u : listMultipartUploads.getMultipartUploads()) {
-			this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, u.getKey(), u.getUploadId()));
-			System.err.print("cleaned: key=");
-			System.err.print(u.getKey());
-			System.err.print(" id=");
-			System.err.print(u.getUploadId());
-			System.err.println();
+	public void run () throws Exception {
+		final long cutoff = System.currentTimeMillis() - this.olderThanMillis;
+		final ExecutorService executor = ExecutorFactory.newFixedThreadPool("clean", this.threads);
+		long listed = 0;
+		long cleaned = 0;
+		long failed = 0;
+		final long startTime = System.currentTimeMillis();
+		try {
+			final ListMultipartUploadsRequest req = new ListMultipartUploadsRequest(this.bucket).withPrefix(this.prefix);
+			while (true) {
+				final MultipartUploadListing page = S3Helper.listMultipartUploads(this.s3Client, req);
+				listed += page.getMultipartUploads().size();
+
+				// One page at a time, so memory stays at a page however many uploads there are.
+				final List<MultipartUpload> aborting = new ArrayList<MultipartUpload>();
+				final List<Future<Void>> aborts = new ArrayList<Future<Void>>();
+				for (final MultipartUpload u : page.getMultipartUploads()) {
+					if (u.getInitiated().getTime() > cutoff) continue;
+					aborting.add(u);
+					aborts.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call () throws Exception {
+							return RetryPolicy.shared().call("abortMultipartUpload", new Callable<Void>() {
+								@Override
+								public Void call () {
+									Clean.this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(Clean.this.bucket, u.getKey(), u.getUploadId()));
+									return null;
+								}
+							});
+						}
+					}));
+				}
+
+				for (int i = 0; i < aborts.size(); i++) {
+					final MultipartUpload u = aborting.get(i);
+					try {
+						aborts.get(i).get();
+						cleaned += 1;
+						System.err.print("cleaned: key=");
+					}
+					catch (ExecutionException e) {
+						if (S3Helper.isNoSuchUpload(e.getCause())) {
+							// Completed or aborted by someone else since it was listed, either way it is gone.
+							cleaned += 1;
+							System.err.print("gone: key=");
+						}
+						else {
+							failed += 1;
+							System.err.print("failed: " + e.getCause() + " key=");
+						}
+					}
+					System.err.print(u.getKey());
+					System.err.print(" id=");
+					System.err.print(u.getUploadId());
+					System.err.println();
+				}
+
+				if (!page.isTruncated()) break;
+				req.setKeyMarker(page.getNextKeyMarker());
+				req.setUploadIdMarker(page.getNextUploadIdMarker());
+			}
 		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		System.err.println("uploads=" + listed + " cleaned=" + cleaned + " failed=" + failed
+				+ " duration=" + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime) + "s");
+		if (failed > 0) throw new IOException("Failed to abort " + failed + " uploads.");
 	}
 
 }
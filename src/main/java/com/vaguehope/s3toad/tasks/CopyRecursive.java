@@ -0,0 +1,208 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.S3Helper;
+import com.vaguehope.s3toad.util.TransferRunner;
+
+/**
+ * Copy every object under a prefix to another bucket and/or prefix, several objects at once.
+ * Copies are done by S3, no object data passes through this process.
+ * Objects below the threshold are copied with one request, larger ones as a multipart copy of ranges
+ * with their parts spread over a shared part pool.
+ */
+public class CopyRecursive {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CopyRecursive.class);
+	private static final RetryPolicy RETRY = RetryPolicy.shared();
+
+	/**
+	 * S3 will not copy an object larger than this in one request.
+	 */
+	public static final long MAX_SINGLE_COPY = 5L * 1024L * 1024L * 1024L;
+	private static final long PROGRESS_INTERVAL_MILLIS = 10000L;
+
+	private final AmazonS3 s3Client;
+	private final String sourceBucket;
+	private final String sourcePrefix;
+	private final String destinationBucket;
+	private final String destinationPrefix;
+	private final int threads;
+	private final long partSize;
+	private final Map<String, String> metadata;
+	private long singleCopyThreshold = LargeCopy.DEFAULT_PART_SIZE;
+	private int listThreads = 1;
+	private boolean dryRun = false;
+	private boolean inPlace = false;
+
+	/**
+	 * @param destinationPrefix replaces sourcePrefix at the start of each key.
+	 * @param partSize for multipart copies, raised as needed to stay within S3's part count limit.
+	 * @param metadata user metadata to add to or replace on each object's own, may be empty.
+	 */
+	public CopyRecursive(final AmazonS3 s3Client, final String sourceBucket, final String sourcePrefix,
+			final String destinationBucket, final String destinationPrefix, final int threads, final long partSize, final Map<String, String> metadata) {
+		this.s3Client = s3Client;
+		this.sourceBucket = sourceBucket;
+		this.sourcePrefix = sourcePrefix != null ? sourcePrefix : "";
+		this.destinationBucket = destinationBucket;
+		this.destinationPrefix = destinationPrefix != null ? destinationPrefix : "";
+		this.threads = threads;
+		this.partSize = partSize;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Objects smaller than this are copied with one request, at most MAX_SINGLE_COPY.
+	 * Defaults to LargeCopy's default part size.
+	 */
+	public void setSingleCopyThreshold(final long singleCopyThreshold) {
+		this.singleCopyThreshold = Math.min(singleCopyThreshold, MAX_SINGLE_COPY);
+	}
+
+	/**
+	 * If more than 1, list partitions of the source prefix concurrently.
+	 */
+	public void setListThreads(final int listThreads) {
+		this.listThreads = listThreads;
+	}
+
+	/**
+	 * List and log what would be copied, without copying anything.
+	 */
+	public void setDryRun(final boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * Allow the destination to be the source itself, for rewriting metadata in place.
+	 * Otherwise a destination overlapping the source is refused.
+	 */
+	public void setInPlace(final boolean inPlace) {
+		this.inPlace = inPlace;
+	}
+
+	/**
+	 * True if copies would land under the source prefix, where the listing could find them and copy them again,
+	 * or onto the source objects themselves.
+	 */
+	public static boolean overlaps(final String sourceBucket, final String sourcePrefix, final String destinationBucket, final String destinationPrefix) {
+		if (!sourceBucket.equals(destinationBucket)) return false;
+		return (destinationPrefix != null ? destinationPrefix : "").startsWith(sourcePrefix != null ? sourcePrefix : "");
+	}
+
+	public void run() throws Exception {
+		if (overlaps(this.sourceBucket, this.sourcePrefix, this.destinationBucket, this.destinationPrefix)
+				&& !(this.inPlace && this.sourcePrefix.equals(this.destinationPrefix))) {
+			throw new IllegalArgumentException("Destination " + this.destinationBucket + "/" + this.destinationPrefix
+					+ " overlaps source " + this.sourceBucket + "/" + this.sourcePrefix + ".");
+		}
+		final KeyListing listing = S3Helper.listKeys(this.s3Client, this.sourceBucket, this.sourcePrefix, this.listThreads, false);
+		final TransferRunner runner = new TransferRunner("copy", this.threads, "copy");
+		final ExecutorService partExecutor = ExecutorFactory.newFixedThreadPool("wrkr", this.threads);
+		long dryRunCount = 0;
+		long dryRunBytes = 0;
+		final long startTime = System.currentTimeMillis();
+		long lastProgress = startTime;
+		try {
+			long count = 0;
+			while (listing.hasNext()) {
+				final S3ObjectSummary o = listing.next();
+				if (!o.getKey().startsWith(this.sourcePrefix)) throw new IllegalStateException("S3 listing returned key that did not start with requested prefix: " + o.getKey());
+				final String destinationKey = this.destinationPrefix + o.getKey().substring(this.sourcePrefix.length());
+
+				if (this.dryRun) {
+					LOG.info("dryrun {} {} --> {}/{} {}", count, o.getKey(), this.destinationBucket, destinationKey,
+							o.getSize() >= this.singleCopyThreshold ? "multipart" : "single");
+					dryRunCount += 1;
+					dryRunBytes += o.getSize();
+					count += 1;
+					continue;
+				}
+
+				LOG.info("{} {} --> {}/{}", count, o.getKey(), this.destinationBucket, destinationKey);
+				if (!runner.submit(o.getKey(), o.getSize(), copier(o, destinationKey, partExecutor))) break;
+				count += 1;
+
+				final long now = System.currentTimeMillis();
+				if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+					logSummary("progress", runner.getTransferedCount(), runner.getTransferedBytes(), now - startTime);
+					lastProgress = now;
+				}
+			}
+			runner.awaitAll();
+		}
+		finally {
+			listing.stop();
+			runner.shutdownNow();
+			partExecutor.shutdownNow();
+		}
+
+		if (this.dryRun) {
+			logSummary("dryrun", dryRunCount, dryRunBytes, System.currentTimeMillis() - startTime);
+		}
+		else {
+			logSummary("copied", runner.getTransferedCount(), runner.getTransferedBytes(), System.currentTimeMillis() - startTime);
+		}
+
+		final Exception e = runner.getFailure();
+		if (e != null) throw new IOException("Copy failed: " + e.getMessage(), e);
+	}
+
+	private static void logSummary(final String what, final long count, final long bytes, final long duration) {
+		final long millis = Math.max(1, duration);
+		LOG.info("{}={} bytes={} duration={}s objects/s={} bytes/s={}",
+				what, count, bytes, TimeUnit.MILLISECONDS.toSeconds(millis),
+				count * 1000L / millis, bytes * 1000L / millis);
+	}
+
+	private Callable<Void> copier(final S3ObjectSummary object, final String destinationKey, final ExecutorService partExecutor) {
+		if (object.getSize() >= this.singleCopyThreshold) {
+			return new LargeCopy(this.s3Client, this.sourceBucket, object.getKey(), this.destinationBucket, destinationKey, partExecutor, this.partSize, this.metadata);
+		}
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				RETRY.call("copyObject " + object.getKey(), new Callable<CopyObjectResult>() {
+					@Override
+					public CopyObjectResult call() {
+						return CopyRecursive.this.s3Client.copyObject(copyRequest(object, destinationKey));
+					}
+				});
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Without new metadata S3 copies the source's, with it the source's has to be fetched to merge into.
+	 */
+	private CopyObjectRequest copyRequest(final S3ObjectSummary object, final String destinationKey) {
+		final CopyObjectRequest req = new CopyObjectRequest(this.sourceBucket, object.getKey(), this.destinationBucket, destinationKey);
+		if (this.metadata != null && !this.metadata.isEmpty()) {
+			final ObjectMetadata objectMetadata = this.s3Client.getObjectMetadata(this.sourceBucket, object.getKey());
+			final Map<String, String> merged = new LinkedHashMap<String, String>(objectMetadata.getUserMetadata());
+			merged.putAll(this.metadata);
+			objectMetadata.setUserMetadata(merged);
+			req.setNewObjectMetadata(objectMetadata);
+		}
+		return req;
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.vaguehope.s3toad.util.S3Helper;
+
+/**
+ * Compare two listings in key order, such as a snapshot and a later snapshot or a live listing,
+ * printing what was added, removed or changed.
+ * Both sides are streamed, so memory does not grow with the number of keys.
+ * <p>
+ * Each difference is printed as [+|-|~]\t[size]\t[key], with the size after for added and changed and before for removed.
+ * An object is changed if its size or ETag differ, a new mtime with the same content is not a change.
+ */
+public class Diff {
+
+	private final Iterator<S3ObjectSummary> before;
+	private final Iterator<S3ObjectSummary> after;
+
+	/**
+	 * Both must iterate in S3 key order.
+	 */
+	public Diff(final Iterator<S3ObjectSummary> before, final Iterator<S3ObjectSummary> after) {
+		this.before = before;
+		this.after = after;
+	}
+
+	public void run() throws Exception {
+		long added = 0;
+		long removed = 0;
+		long changed = 0;
+		long unchanged = 0;
+
+		final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), "UTF-8"), 64 * 1024);
+		try {
+			S3ObjectSummary b = this.before.hasNext() ? this.before.next() : null;
+			S3ObjectSummary a = this.after.hasNext() ? this.after.next() : null;
+			while (b != null || a != null) {
+				final int c;
+				if (b == null) {
+					c = 1;
+				}
+				else if (a == null) {
+					c = -1;
+				}
+				else {
+					c = S3Helper.KEY_ORDER.compare(b.getKey(), a.getKey());
+				}
+
+				if (c < 0) {
+					print(w, '-', b);
+					removed += 1;
+				}
+				else if (c > 0) {
+					print(w, '+', a);
+					added += 1;
+				}
+				else if (a.getSize() != b.getSize() || !eq(a.getETag(), b.getETag())) {
+					print(w, '~', a);
+					changed += 1;
+				}
+				else {
+					unchanged += 1;
+				}
+
+				if (c <= 0) b = this.before.hasNext() ? this.before.next() : null;
+				if (c >= 0) a = this.after.hasNext() ? this.after.next() : null;
+			}
+		}
+		finally {
+			w.flush();
+		}
+
+		System.err.println("added=" + added + " removed=" + removed + " changed=" + changed + " unchanged=" + unchanged);
+	}
+
+	private static void print(final Writer w, final char type, final S3ObjectSummary o) throws IOException {
+		w.write(type);
+		w.write('\t');
+		w.write(String.valueOf(o.getSize()));
+		w.write('\t');
+		w.write(o.getKey());
+		w.write('\n');
+	}
+
+	private static boolean eq(final String a, final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.PrefixTree;
+import com.vaguehope.s3toad.util.S3Helper;
+
+/**
+ * Like du, object count and bytes per prefix down to a given depth, from one listing.
+ */
+public class DiskUsage {
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final String prefix;
+	private final int depth;
+	private final int listThreads;
+
+	public DiskUsage(final AmazonS3 s3Client, final String bucket, final String prefix, final int depth, final int listThreads) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.prefix = prefix != null ? prefix : "";
+		this.depth = depth;
+		this.listThreads = listThreads;
+	}
+
+	public void run() throws Exception {
+		final PrefixTree tree = new PrefixTree(this.depth);
+		final KeyListing listing = S3Helper.listKeys(this.s3Client, this.bucket, this.prefix, this.listThreads, false);
+		try {
+			while (listing.hasNext()) {
+				final S3ObjectSummary o = listing.next();
+				tree.add(o.getKey().substring(this.prefix.length()), o.getSize());
+			}
+		}
+		finally {
+			listing.stop();
+		}
+
+		final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), "UTF-8"));
+		tree.write(w, this.prefix);
+		w.flush();
+		System.out.println("bucket=" + this.bucket + " objects=" + tree.getCount() + " total_size=" + tree.getBytes());
+	}
+
+}
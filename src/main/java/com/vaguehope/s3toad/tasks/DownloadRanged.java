@@ -0,0 +1,238 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.vaguehope.s3toad.util.AimdLimiter;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.FailFastCollector;
+import com.vaguehope.s3toad.util.FileHelper;
+import com.vaguehope.s3toad.util.Hedger;
+import com.vaguehope.s3toad.util.PrgTracker;
+import com.vaguehope.s3toad.util.RetryPolicy;
+
+/**
+ * Download one object as parallel ranged GETs,
+ * each range written at its offset into a preallocated local file.
+ * The file is written as [name].part and only renamed to its name once every range is written and synced,
+ * so a failed download never leaves a full size file that is partly zeros.
+ * Every range is fetched on condition the object still has the ETag it had when the download started,
+ * so an object overwritten part way fails the download rather than mixing versions.
+ */
+public class DownloadRanged {
+
+	protected static final Logger LOG = LoggerFactory.getLogger(DownloadRanged.class);
+
+	private static final RetryPolicy RETRY = RetryPolicy.shared();
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final String key;
+	private final long contentLength;
+	private final String eTag;
+	private final File localFile;
+	private final ExecutorService executor;
+	private final long chunkSize;
+	private AimdLimiter limiter;
+	private boolean hedging = false;
+
+	/**
+	 * @param contentLength and eTag of the object, from a HEAD.
+	 */
+	public DownloadRanged(final AmazonS3 s3Client, final String bucket, final String key, final long contentLength, final String eTag, final File localFile, final ExecutorService executor, final long chunkSize) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.key = key;
+		this.contentLength = contentLength;
+		this.eTag = eTag;
+		this.localFile = localFile;
+		this.executor = executor;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Adaptively cap how many ranges run at once.
+	 * The executor should have at least the limiter's max threads.
+	 */
+	public void setConcurrencyLimiter(final AimdLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Once a few ranges are done, give any range running well past their p95 duration a duplicate download,
+	 * using whichever finishes first.  Both write the same bytes to the same place, so the loser does no harm.
+	 */
+	public void setHedging(final boolean hedging) {
+		this.hedging = hedging;
+	}
+
+	public void run() throws Exception {
+		final long startTime = System.currentTimeMillis();
+		final PrgTracker tracker = new PrgTracker(LOG);
+		final File partFile = new File(this.localFile.getPath() + ".part");
+		final RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+		boolean complete = false;
+		try {
+			raf.setLength(this.contentLength);
+			final FileChannel channel = raf.getChannel();
+
+			final FailFastCollector<Void> ranges = new FailFastCollector<Void>(this.executor);
+			final Hedger hedger = this.hedging ? new Hedger(ExecutorFactory.threadCount(this.executor)) : null;
+			try {
+				long position = 0;
+				while (position < this.contentLength) {
+					final long rangeLength = Math.min(this.chunkSize, this.contentLength - position);
+					final RangeDownloader downloader = new RangeDownloader(this.s3Client, this.bucket, this.key, this.eTag, position, rangeLength, channel, tracker, this.limiter);
+					if (hedger != null) {
+						// The duplicate does not report progress, so bytes are not counted twice.
+						final RangeDownloader duplicate = new RangeDownloader(this.s3Client, this.bucket, this.key, this.eTag, position, rangeLength, channel, null, this.limiter);
+						ranges.submit(hedger.hedged("Range " + position + "+" + rangeLength, downloader, duplicate), null);
+					}
+					else {
+						ranges.submit(downloader, null);
+					}
+					position += rangeLength;
+				}
+				ranges.awaitAll();
+			}
+			catch (Exception e) {
+				ranges.cancelAll();
+				throw e;
+			}
+			finally {
+				if (hedger != null) hedger.shutdown();
+			}
+			channel.force(false);
+			raf.close();
+			FileHelper.rename(partFile, this.localFile);
+			complete = true;
+
+			tracker.print();
+			LOG.info("contentLength={} ranges={} duration={}s",
+					this.contentLength, ranges.size(), TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+		}
+		finally {
+			raf.close();
+			if (!complete && partFile.exists() && !partFile.delete()) {
+				LOG.warn("Failed to delete incomplete download: {}", partFile.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Abandonable rather than interrupted when it loses a hedge,
+	 * as interrupting a write would close the channel shared with every other range.
+	 */
+	private static class RangeDownloader implements Callable<Void>, Hedger.Abandonable {
+
+		private final AmazonS3 s3Client;
+		private final String bucket;
+		private final String key;
+		private final String eTag;
+		private final long start;
+		private final long length;
+		private final FileChannel channel;
+		private final PrgTracker tracker;
+		private final AimdLimiter limiter;
+
+		/**
+		 * Bytes of this range written so far, so a retry only fetches what is missing.
+		 */
+		private long written = 0;
+		private volatile boolean abandoned = false;
+
+		public RangeDownloader(final AmazonS3 s3Client, final String bucket, final String key, final String eTag, final long start, final long length, final FileChannel channel, final PrgTracker tracker, final AimdLimiter limiter) {
+			this.s3Client = s3Client;
+			this.bucket = bucket;
+			this.key = key;
+			this.eTag = eTag;
+			this.start = start;
+			this.length = length;
+			this.channel = channel;
+			this.tracker = tracker;
+			this.limiter = limiter;
+		}
+
+		@Override
+		public void abandon() {
+			this.abandoned = true;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			final long startTime = System.currentTimeMillis();
+			int attempt = 0;
+			while (true) {
+				attempt++;
+				if (this.limiter != null) this.limiter.acquire();
+				final long attemptStartTime = System.currentTimeMillis();
+				final long writtenBefore = this.written;
+				try {
+					downloadRemaining();
+					if (this.limiter != null) this.limiter.succeeded(this.written - writtenBefore, System.currentTimeMillis() - attemptStartTime);
+					break;
+				}
+				catch (Exception e) {
+					if (this.limiter != null) this.limiter.failed(e);
+					if (this.abandoned) throw e;
+					if (!RETRY.shouldRetry("Download of range " + this.start + "+" + this.length + " (at " + this.written + ")", attempt, e)) throw e;
+				}
+			}
+			RETRY.succeeded();
+			final long seconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime);
+			LOG.info("range={}+{} duration={}s", this.start, this.length, seconds);
+			return null;
+		}
+
+		private void downloadRemaining() throws IOException {
+			if (this.written >= this.length) return;
+			final long from = this.start + this.written;
+			final long to = this.start + this.length - 1;
+			final S3Object object = this.s3Client.getObject(new GetObjectRequest(this.bucket, this.key)
+					.withRange(from, to)
+					.withMatchingETagConstraint(this.eTag));
+			// Not retryable, every later attempt would fail the same way.
+			if (object == null) throw new IllegalStateException("Object changed during download: " + this.bucket + "/" + this.key);
+			final S3ObjectInputStream is = object.getObjectContent();
+			boolean complete = false;
+			try {
+				final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+				while (this.written < this.length) {
+					if (Thread.interrupted() || this.abandoned) throw new InterruptedIOException("Range download cancelled.");
+					final int n = is.read(buffer, 0, (int) Math.min(buffer.length, this.length - this.written));
+					if (n < 0) throw new IOException("Premature end of range: expected " + this.length + " bytes but got " + this.written + ".");
+					final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+					long position = this.start + this.written;
+					while (bb.hasRemaining()) {
+						position += this.channel.write(bb, position);
+					}
+					this.written += n;
+					if (this.tracker != null) this.tracker.transfered(n);
+				}
+				complete = true;
+			}
+			finally {
+				// Do not drain the rest of the HTTP response on failure.
+				if (!complete) is.abort();
+				is.close();
+			}
+		}
+
+	}
+
+}
@@ -4,17 +4,23 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.TransferManager;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.S3Helper;
+import com.vaguehope.s3toad.util.TransferIndex;
+import com.vaguehope.s3toad.util.TransferRunner;
 
 public class DownloadRecursive {
 
@@ -26,49 +32,72 @@ public class DownloadRecursive {
 	private final boolean reverse;
 	private final long limit;
     private final String basePath;
+	private final int threads;
+	private final int listThreads;
+	private boolean indexed = false;
 
 	public DownloadRecursive(final AmazonS3 s3Client, final String bucket, final String prefix, final boolean reverse, final long limit, final String basePath) {
+		this(s3Client, bucket, prefix, reverse, limit, basePath, 1, 1);
+	}
+
+	/**
+	 * @param listThreads if more than 1, list partitions of the key space concurrently.
+	 */
+	public DownloadRecursive(final AmazonS3 s3Client, final String bucket, final String prefix, final boolean reverse, final long limit, final String basePath, final int threads, final int listThreads) {
 		this.s3Client = s3Client;
 		this.bucket = bucket;
 		this.prefix = prefix;
 		this.reverse = reverse;
 		this.limit = limit;
         this.basePath = basePath == null || basePath.length() < 1 ? basename(prefix) : basePath;
+		this.threads = threads;
+		this.listThreads = listThreads;
 	}
 
-	public void run() throws InterruptedException, IOException {
-		LOG.info("counting...");
-		final List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
-		ObjectListing objectListing = this.s3Client.listObjects(new ListObjectsRequest()
-				.withBucketName(this.bucket)
-				.withPrefix(this.prefix));
-		while (true) {
-			objects.addAll(objectListing.getObjectSummaries());
-			if (objectListing.getNextMarker() == null) break;
-			objectListing = this.s3Client.listObjects(new ListObjectsRequest()
-					.withBucketName(this.bucket)
-					.withPrefix(this.prefix)
-					.withMarker(objectListing.getNextMarker()));
-		}
-		LOG.info("itemCount={}", objects.size());
+	/**
+	 * Record each completed download in a local TransferIndex, and skip objects it says are done
+	 * with the same size and ETag without checking the local file.
+	 */
+	public void setIndexed(final boolean indexed) {
+		this.indexed = indexed;
+	}
 
-		if (this.reverse) Collections.reverse(objects);
+	public void run() throws Exception {
+		final Iterator<S3ObjectSummary> objects;
+		final KeyListing listing;
+		if (this.reverse) {
+			objects = listAllReversed();
+			listing = null;
+		}
+		else {
+			listing = S3Helper.listKeys(this.s3Client, this.bucket, this.prefix, this.listThreads, false);
+			objects = listing;
+		}
 
 		final File baseDir = new File(this.basePath).getAbsoluteFile();
 		LOG.info("baseDir={}", baseDir.getAbsolutePath());
+		final TransferIndex index = this.indexed ? TransferIndex.open("rpull", this.bucket, this.prefix, baseDir.getAbsolutePath()) : null;
 
-		final TransferManager tm = new TransferManager(this.s3Client);
+		final TransferRunner runner = new TransferRunner("dl", this.threads, "download");
+		final long startTime = System.currentTimeMillis();
 		try {
 			int transferedCount = 0;
-			for (final S3ObjectSummary o : objects) {
+			while (objects.hasNext()) {
+				final S3ObjectSummary o = objects.next();
 				if (!o.getKey().startsWith(this.prefix)) throw new IllegalStateException("S3 listing returned key that did not start with requested prefix: " + o.getKey());
 				final String localPath = o.getKey().substring(this.prefix.length());
 				final File localFile = new File(baseDir, localPath);
-				if (!localFile.exists() || localFile.lastModified() != o.getLastModified().getTime()) {
+				final boolean done = index != null && isIndexed(index.get(localPath), o);
+				if (done) {
+					LOG.debug("indexed={}", o.getKey());
+				}
+				else if (!localFile.exists() || localFile.lastModified() != o.getLastModified().getTime()) {
 					LOG.info("{} {} --> {}", transferedCount, o.getKey(), localFile.getAbsolutePath());
-					mkdirParentDirs(localFile);
-					tm.download(new GetObjectRequest(o.getBucketName(), o.getKey()), localFile).waitForCompletion();
-					localFile.setLastModified(o.getLastModified().getTime());
+					if (!runner.submit(o.getKey(), o.getSize(), downloader(o, localFile, localPath, index))) break;
+				}
+				else if (index != null) {
+					// Downloaded before the index was kept.
+					index.put(localPath, indexEntry(o));
 				}
 				transferedCount += 1;
 				if (this.limit > 0 && transferedCount >= this.limit) {
@@ -76,10 +105,48 @@ public class DownloadRecursive {
 					break;
 				}
 			}
+			runner.awaitAll();
+		}
+		finally {
+			if (listing != null) listing.stop();
+			runner.shutdownNow();
+			if (index != null) index.close();
+		}
+
+		final long millis = Math.max(1, System.currentTimeMillis() - startTime);
+		LOG.info("downloaded={} bytes={} duration={}s objects/s={} bytes/s={}",
+				runner.getTransferedCount(), runner.getTransferedBytes(), TimeUnit.MILLISECONDS.toSeconds(millis),
+				runner.getTransferedCount() * 1000L / millis, runner.getTransferedBytes() * 1000L / millis);
+
+		final Exception e = runner.getFailure();
+		if (e != null) throw new IOException("Download failed: " + e.getMessage(), e);
+	}
+
+	/**
+	 * Materialises the whole listing, as reversing needs the last key first.
+	 */
+	private Iterator<S3ObjectSummary> listAllReversed() throws Exception {
+		LOG.info("counting...");
+		final List<S3ObjectSummary> objects = new ArrayList<S3ObjectSummary>();
+		final KeyListing listing = S3Helper.listKeys(this.s3Client, this.bucket, this.prefix, this.listThreads, true);
+		try {
+			while (listing.hasNext()) {
+				objects.add(listing.next());
+			}
 		}
 		finally {
-			tm.shutdownNow();
+			listing.stop();
 		}
+		Collections.reverse(objects);
+		return objects.iterator();
+	}
+
+	private static boolean isIndexed(final TransferIndex.Entry entry, final S3ObjectSummary object) {
+		return entry != null && entry.getSize() == object.getSize() && entry.getETag().equals(object.getETag());
+	}
+
+	private static TransferIndex.Entry indexEntry(final S3ObjectSummary object) {
+		return new TransferIndex.Entry(object.getSize(), object.getLastModified().getTime(), object.getETag());
 	}
 
 	private static String basename(String n) {
@@ -93,7 +160,30 @@ public class DownloadRecursive {
 		final File dir = file.getParentFile();
 		if (dir == null) throw new IOException("File has no parent: " + file);
 		if (dir.isDirectory()) return;
-		if (!dir.mkdirs()) throw new IOException("Failed mkdirs: " + dir.getAbsolutePath());
+		if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("Failed mkdirs: " + dir.getAbsolutePath());
+	}
+
+	/**
+	 * @param index may be null.
+	 */
+	private Callable<Void> downloader(final S3ObjectSummary object, final File localFile, final String localPath, final TransferIndex index) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				mkdirParentDirs(localFile);
+				RetryPolicy.shared().call("Download of " + object.getKey(), new Callable<ObjectMetadata>() {
+					@Override
+					public ObjectMetadata call() {
+						return DownloadRecursive.this.s3Client.getObject(
+								new GetObjectRequest(object.getBucketName(), object.getKey()),
+								localFile);
+					}
+				});
+				localFile.setLastModified(object.getLastModified().getTime());
+				if (index != null) index.put(localPath, indexEntry(object));
+				return null;
+			}
+		};
 	}
 
 }
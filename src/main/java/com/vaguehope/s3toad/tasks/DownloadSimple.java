@@ -1,19 +1,23 @@
 package com.vaguehope.s3toad.tasks;
 
 import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.TransferManager;
+import com.vaguehope.s3toad.util.AimdLimiter;
+import com.vaguehope.s3toad.util.ExecutorFactory;
 import com.vaguehope.s3toad.util.PrgTracker;
+import com.vaguehope.s3toad.util.RetryPolicy;
 
 public class DownloadSimple {
 
@@ -22,31 +26,83 @@ public class DownloadSimple {
 	private final AmazonS3 s3Client;
 	private final String bucket;
 	private final String key;
+	private final int threads;
+	private final long chunkSize;
+	private AimdLimiter limiter;
+	private boolean hedging = false;
 
 	public DownloadSimple (AmazonS3 s3Client, String bucket, String key) {
+		this(s3Client, bucket, key, 1, UploadMulti.DEFAULT_CHUNK_SIZE);
+	}
+
+	public DownloadSimple (AmazonS3 s3Client, String bucket, String key, int threads, long chunkSize) {
 		this.s3Client = s3Client;
 		this.bucket = bucket;
 		this.key = key;
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	public void setConcurrencyLimiter (AimdLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Only applies to ranged downloads.
+	 */
+	public void setHedging (boolean hedging) {
+		this.hedging = hedging;
 	}
 
-	public void run () throws AmazonClientException, InterruptedException {
-		ObjectMetadata metadata = this.s3Client.getObjectMetadata(new GetObjectMetadataRequest(this.bucket, this.key));
+	public void run () throws Exception {
+		ObjectMetadata metadata = RetryPolicy.shared().call("getObjectMetadata", new Callable<ObjectMetadata>() {
+			@Override
+			public ObjectMetadata call () {
+				return DownloadSimple.this.s3Client.getObjectMetadata(new GetObjectMetadataRequest(DownloadSimple.this.bucket, DownloadSimple.this.key));
+			}
+		});
 		LOG.info("contentLength={}", metadata.getContentLength());
 
 		File localFile = new File(new File(this.key).getName());
 		LOG.info("localFile={}", localFile.getAbsolutePath());
 
+		if (this.threads > 1 && metadata.getContentLength() > this.chunkSize) {
+			final ExecutorService executor = ExecutorFactory.newFixedThreadPool("dl", this.threads);
+			try {
+				final DownloadRanged d = new DownloadRanged(this.s3Client, this.bucket, this.key, metadata.getContentLength(), metadata.getETag(), localFile, executor, this.chunkSize);
+				d.setConcurrencyLimiter(this.limiter);
+				d.setHedging(this.hedging);
+				d.run();
+			}
+			finally {
+				executor.shutdownNow();
+			}
+			return;
+		}
+
+		// The client makes no retries of its own, so the whole single stream download is retried.
+		final File target = localFile;
+		final long startTime = System.currentTimeMillis();
+		RetryPolicy.shared().call("download", new Callable<Void>() {
+			@Override
+			public Void call () throws Exception {
+				downloadSingleStream(target);
+				return null;
+			}
+		});
+		LOG.info("duration={}s", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+	}
+
+	private void downloadSingleStream (final File localFile) throws InterruptedException {
 		TransferManager tm = new TransferManager(this.s3Client);
 		try {
 			PrgTracker tracker = new PrgTracker(LOG);
-			final long startTime = System.currentTimeMillis();
 			Download download = tm.download(
 					new GetObjectRequest(this.bucket, this.key)
 							.withProgressListener(tracker),
 					localFile);
 			download.waitForCompletion();
 			tracker.print();
-			LOG.info("duration={}s", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
 		}
 		finally {
 			tm.shutdownNow();
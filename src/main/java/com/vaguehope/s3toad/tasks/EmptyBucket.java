@@ -1,39 +1,151 @@
 package com.vaguehope.s3toad.tasks;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.S3Helper;
 
 public class EmptyBucket {
 
+    /**
+     * Max keys S3 accepts in one DeleteObjects request.
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final RetryPolicy RETRY = RetryPolicy.shared();
+
     private final AmazonS3 s3Client;
     private final String bucket;
+    private final int threads;
+    private final int listThreads;
+
+    private final AtomicLong deletedCount = new AtomicLong(0);
+    private final AtomicLong deletedSize = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
 
     public EmptyBucket(final AmazonS3 s3Client, final String bucket) {
+        this(s3Client, bucket, 1);
+    }
+
+    public EmptyBucket(final AmazonS3 s3Client, final String bucket, final int threads) {
+        this(s3Client, bucket, threads, 1);
+    }
+
+    /**
+     * @param listThreads if more than 1, list partitions of the key space concurrently.
+     */
+    public EmptyBucket(final AmazonS3 s3Client, final String bucket, final int threads, final int listThreads) {
         this.s3Client = s3Client;
         this.bucket = bucket;
+        this.threads = threads;
+        this.listThreads = listThreads;
+    }
+
+    public void run() throws Exception {
+        final ExecutorService executor = ExecutorFactory.newFixedThreadPool("del", this.threads);
+        final Semaphore inFlight = new Semaphore(this.threads);
+        final KeyListing listing = S3Helper.listKeys(this.s3Client, this.bucket, null, this.listThreads, false);
+        try {
+            Map<String, Long> batch = new LinkedHashMap<String, Long>();
+            while (listing.hasNext()) {
+                final S3ObjectSummary o = listing.next();
+                batch.put(o.getKey(), o.getSize());
+                if (batch.size() >= MAX_BATCH_SIZE) {
+                    submitBatch(executor, inFlight, batch);
+                    batch = new LinkedHashMap<String, Long>();
+                }
+            }
+            if (batch.size() > 0) submitBatch(executor, inFlight, batch);
+
+            inFlight.acquire(this.threads);
+            inFlight.release(this.threads);
+        }
+        finally {
+            listing.stop();
+            executor.shutdownNow();
+        }
+
+        System.out.println("emptied bucket=" + this.bucket + " objects=" + this.deletedCount.get() + " total_size=" + this.deletedSize.get());
+        if (this.failedCount.get() > 0) throw new AmazonClientException("Failed to delete " + this.failedCount.get() + " objects.");
     }
 
-    public void run() {
-        long totalSize = 0;
-        long objectCount = 0;
+    private void submitBatch(final ExecutorService executor, final Semaphore inFlight, final Map<String, Long> batch) throws InterruptedException {
+        inFlight.acquire();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deleteBatch(batch);
+                }
+                finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
 
-        ObjectListing objectListing = this.s3Client.listObjects(this.bucket);
+    /**
+     * Keys that fail within a batch are retried on their own, whole batch failures are retried as is.
+     */
+    private void deleteBatch(final Map<String, Long> batch) {
+        final Map<String, Long> remaining = new LinkedHashMap<String, Long>(batch);
+        int attempt = 0;
         while (true) {
-            for (final S3ObjectSummary o : objectListing.getObjectSummaries()) {
-                ++objectCount;
-                totalSize += o.getSize();
-                this.s3Client.deleteObject(this.bucket, o.getKey());
-                System.out.println(String.format("deleted key=%s size=%d", o.getKey(), o.getSize()));
+            attempt++;
+            final List<KeyVersion> keys = new ArrayList<KeyVersion>(remaining.size());
+            for (final String key : remaining.keySet()) {
+                keys.add(new KeyVersion(key));
+            }
+
+            try {
+                final DeleteObjectsResult result = this.s3Client.deleteObjects(new DeleteObjectsRequest(this.bucket).withKeys(keys));
+                RETRY.succeeded();
+                markDeleted(remaining, result.getDeletedObjects());
+                return;
             }
-            if (objectListing.getNextMarker() == null) break;
-            objectListing = this.s3Client.listObjects(new ListObjectsRequest()
-                    .withBucketName(this.bucket)
-                    .withMarker(objectListing.getNextMarker()));
+            catch (MultiObjectDeleteException e) {
+                markDeleted(remaining, e.getDeletedObjects());
+                for (final DeleteError de : e.getErrors()) {
+                    System.err.println(String.format("failed key=%s code=%s message=%s", de.getKey(), de.getCode(), de.getMessage()));
+                }
+                if (RETRY.shouldRetry("Delete of " + remaining.size() + " keys", attempt, e)) continue;
+            }
+            catch (AmazonClientException e) {
+                if (RETRY.shouldRetry("Delete batch of " + remaining.size() + " keys", attempt, e)) continue;
+            }
+
+            for (final String key : remaining.keySet()) {
+                System.err.println("gave up key=" + key);
+            }
+            this.failedCount.addAndGet(remaining.size());
+            return;
         }
+    }
 
-        System.out.println("emptied bucket=" + this.bucket + " objects=" + objectCount + " total_size=" + totalSize);
+    private void markDeleted(final Map<String, Long> remaining, final List<DeletedObject> deleted) {
+        for (final DeletedObject d : deleted) {
+            final Long size = remaining.remove(d.getKey());
+            if (size == null) continue;
+            this.deletedCount.incrementAndGet();
+            this.deletedSize.addAndGet(size);
+            System.out.println(String.format("deleted key=%s size=%d", d.getKey(), size));
+        }
     }
 
 }
@@ -1,6 +1,7 @@
 package com.vaguehope.s3toad.tasks;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.CopyPartRequest;
@@ -9,18 +10,43 @@ import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.FailFastCollector;
+import com.vaguehope.s3toad.util.RetryPolicy;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Multipart copy of one object, its parts copied by S3 in parallel.
+ * On failure the remaining parts are cancelled and the upload aborted, so no parts are left to be billed.
+ */
 public class LargeCopy implements Callable<Void> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LargeCopy.class);
+
+	public static final long DEFAULT_PART_SIZE = 100L * 1024L * 1024L;
+	public static final int DEFAULT_THREADS = 50;
+	private static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+	private static final long MAX_PART_SIZE = 5L * 1024L * 1024L * 1024L;
+	private static final int MAX_PARTS = 10000;
+	private static final RetryPolicy RETRY = RetryPolicy.shared();
+
+	private static final Comparator<PartETag> PART_NUMBER_ORDER = new Comparator<PartETag>() {
+		@Override
+		public int compare(final PartETag a, final PartETag b) {
+			return a.getPartNumber() < b.getPartNumber() ? -1 : (a.getPartNumber() == b.getPartNumber() ? 0 : 1);
+		}
+	};
+
 	private final AmazonS3 s3Client;
 
 	private final String sourceBucket;
@@ -28,88 +54,169 @@ public class LargeCopy implements Callable<Void> {
 	private final String destinationBucket;
 	private final String destinationKey;
 	private final Map<String, String> metadata;
+	private final ExecutorService executor;
+	private final int threads;
+	private final long partSize;
 
 	public LargeCopy(AmazonS3 s3Client, String sourceBucket, String sourceKey, String destinationBucket, String destinationKey, Map<String, String> metadata) {
+		this(s3Client, sourceBucket, sourceKey, destinationBucket, destinationKey, DEFAULT_THREADS, DEFAULT_PART_SIZE, metadata);
+	}
+
+	/**
+	 * Copies parts on a pool of this many threads, made for each call().
+	 * @param partSize raised as needed to stay within S3's part count limit.
+	 */
+	public LargeCopy(AmazonS3 s3Client, String sourceBucket, String sourceKey, String destinationBucket, String destinationKey, int threads, long partSize, Map<String, String> metadata) {
 		this.s3Client = s3Client;
 		this.sourceBucket = sourceBucket;
 		this.sourceKey = sourceKey;
 		this.destinationBucket = destinationBucket;
 		this.destinationKey = destinationKey;
 		this.metadata = metadata;
+		this.executor = null;
+		this.threads = threads;
+		this.partSize = partSize;
+	}
+
+	/**
+	 * Copies parts on a shared executor, e.g. one pool for many copies.
+	 * @param partSize raised as needed to stay within S3's part count limit.
+	 */
+	public LargeCopy(AmazonS3 s3Client, String sourceBucket, String sourceKey, String destinationBucket, String destinationKey, ExecutorService executor, long partSize, Map<String, String> metadata) {
+		this.s3Client = s3Client;
+		this.sourceBucket = sourceBucket;
+		this.sourceKey = sourceKey;
+		this.destinationBucket = destinationBucket;
+		this.destinationKey = destinationKey;
+		this.metadata = metadata;
+		this.executor = executor;
+		this.threads = 0;
+		this.partSize = partSize;
+	}
+
+	/**
+	 * Smallest part size from minPartSize up that copies length bytes in at most 10,000 parts.
+	 */
+	public static long partSizeFor(final long length, final long minPartSize) {
+		final long needed = (length + MAX_PARTS - 1) / MAX_PARTS;
+		final long size = Math.max(Math.max(minPartSize, MIN_PART_SIZE), needed);
+		if (size > MAX_PART_SIZE) throw new IllegalArgumentException("Object too large to copy in " + MAX_PARTS + " parts: " + length);
+		return size;
 	}
 
 	@Override
-	public Void call() throws InterruptedException, ExecutionException {
-		ObjectMetadata objectMetadata = s3Client.getObjectMetadata(sourceBucket, sourceKey);
+	public Void call() throws Exception {
+		final ExecutorService ex = this.executor != null ? this.executor : ExecutorFactory.newFixedThreadPool("cpy", this.threads);
+		try {
+			copy(ex);
+		}
+		finally {
+			if (ex != this.executor) ex.shutdownNow();
+		}
+		return null;
+	}
+
+	private void copy(final ExecutorService ex) throws Exception {
+		final long startTime = System.currentTimeMillis();
+		ObjectMetadata objectMetadata = RETRY.call("getObjectMetadata", new Callable<ObjectMetadata>() {
+			@Override public ObjectMetadata call() {
+				return s3Client.getObjectMetadata(sourceBucket, sourceKey);
+			}
+		});
 
 		final Map<String, String> mergedUserMetadata = new LinkedHashMap<String, String>();
 		mergedUserMetadata.putAll(objectMetadata.getUserMetadata());
 		mergedUserMetadata.putAll(metadata);
 		objectMetadata.setUserMetadata(mergedUserMetadata);
-		InitiateMultipartUploadRequest startRequest = new InitiateMultipartUploadRequest(destinationBucket, destinationKey, objectMetadata);
-		final InitiateMultipartUploadResult startResult = s3Client.initiateMultipartUpload(startRequest);
-
-		long start = 0;
-		long max = 100L*1024L*1024L;
-		System.out.println("Content Length: " + objectMetadata.getContentLength() + " [max part length: " + max + "] -> estimated parts: " + (1+(objectMetadata.getContentLength()/max)));
-
-		System.out.println("start: " + new Date().toString());
-
-		ExecutorService ex = Executors.newFixedThreadPool(50);
-		List<Future<CopyPartResult>> futures = new ArrayList<Future<CopyPartResult>>();
-
-		int partNumber = 1;
-		while (start < objectMetadata.getContentLength()) {
-			long change = Math.min(max, objectMetadata.getContentLength() - start);
-			long end = start + change-1;
-
-			final long actualStart = start;
-			final long actualEnd = end;
-			final int actualPartNumber = partNumber;
-
-			System.out.println("Setting up part " + partNumber + " [" + start + ", " + end + "]");
-			Callable<CopyPartResult> callable = new Callable<CopyPartResult>() {
-				@Override public CopyPartResult call() throws Exception {
-					CopyPartRequest partRequest = new CopyPartRequest()
-							.withUploadId(startResult.getUploadId())
-							.withFirstByte(actualStart)
-							.withLastByte(actualEnd)
-							.withSourceBucketName(sourceBucket)
-							.withSourceKey(sourceKey)
-							.withDestinationBucketName(destinationBucket)
-							.withDestinationKey(destinationKey)
-							.withPartNumber(actualPartNumber)
-							;
-				   return s3Client.copyPart(partRequest);
-				}
-			};
-			Future<CopyPartResult> future = ex.submit(callable);
-			futures.add(future);
 
-			start += change;
-			partNumber++;
+		final long contentLength = objectMetadata.getContentLength();
+		final String eTag = objectMetadata.getETag();
+		final long max = partSizeFor(contentLength, this.partSize);
+		LOG.info("source={}/{} contentLength={} partSize={} parts={}",
+				sourceBucket, sourceKey, contentLength, max, Math.max(1, (contentLength + max - 1) / max));
+
+		final InitiateMultipartUploadRequest startRequest = new InitiateMultipartUploadRequest(destinationBucket, destinationKey, objectMetadata);
+		final InitiateMultipartUploadResult startResult = RETRY.call("initiateMultipartUpload", new Callable<InitiateMultipartUploadResult>() {
+			@Override public InitiateMultipartUploadResult call() {
+				return s3Client.initiateMultipartUpload(startRequest);
+			}
+		});
+		final String uploadId = startResult.getUploadId();
+
+		final FailFastCollector<CopyPartResult> parts = new FailFastCollector<CopyPartResult>(ex);
+		try {
+			long start = 0;
+			int partNumber = 1;
+			// An empty object still needs one part.
+			do {
+				final long change = Math.min(max, contentLength - start);
+				final CopyPartRequest partRequest = new CopyPartRequest()
+						.withUploadId(uploadId)
+						.withSourceBucketName(sourceBucket)
+						.withSourceKey(sourceKey)
+						.withDestinationBucketName(destinationBucket)
+						.withDestinationKey(destinationKey)
+						.withPartNumber(partNumber)
+						// So every part comes from the same version of the source.
+						.withMatchingETagConstraint(eTag);
+				if (change > 0) partRequest.withFirstByte(start).withLastByte(start + change - 1);
+
+				parts.checkFailures();
+				final String what = "copyPart " + partNumber;
+				parts.submit(new Callable<CopyPartResult>() {
+					@Override public CopyPartResult call() throws Exception {
+						return RETRY.call(what, new Callable<CopyPartResult>() {
+							@Override public CopyPartResult call() {
+								final CopyPartResult result = s3Client.copyPart(partRequest);
+								// Not retryable, every later attempt would fail the same way.
+								if (result == null) throw new IllegalStateException("Object changed during copy: " + sourceBucket + "/" + sourceKey);
+								return result;
+							}
+						});
+					}
+				}, null);
+
+				start += change;
+				partNumber++;
+			}
+			while (start < contentLength);
+
+			final List<PartETag> etags = new ArrayList<PartETag>();
+			for (CopyPartResult partResult : parts.awaitAll()) {
+				etags.add(new PartETag(partResult.getPartNumber(), partResult.getETag()));
+			}
+			Collections.sort(etags, PART_NUMBER_ORDER);
+
+			final CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(destinationBucket, destinationKey, uploadId, etags);
+			RETRY.call("completeMultipartUpload", new Callable<CompleteMultipartUploadResult>() {
+				@Override public CompleteMultipartUploadResult call() {
+					return s3Client.completeMultipartUpload(completeRequest);
+				}
+			});
 		}
-
-		List<PartETag> etags = new ArrayList<PartETag>();
-		for (Future<CopyPartResult> future : futures) {
-			CopyPartResult partResult = future.get();
-			System.out.println("Processing part " + partResult.getPartNumber());
-			etags.add(new PartETag(partResult.getPartNumber(), partResult.getETag()));
+		catch (Exception e) {
+			parts.cancelAll();
+			abort(uploadId);
+			throw e;
 		}
 
-		CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest((String)null, (String)null, (String)null, (List<PartETag>)null)
-				.withUploadId(startResult.getUploadId())
-				.withBucketName(destinationBucket)
-				.withKey(destinationKey)
-				.withPartETags(etags)
-				;
-
-		CompleteMultipartUploadResult completeResult = s3Client.completeMultipartUpload(completeRequest);
-		System.out.println("end: " + new Date().toString());
-
-		ex.shutdown();
+		LOG.info("destination={}/{} contentLength={} parts={} duration={}s",
+				destinationBucket, destinationKey, contentLength, parts.size(), TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+	}
 
-		return null;
+	private void abort(final String uploadId) {
+		try {
+			RETRY.call("abortMultipartUpload", new Callable<Void>() {
+				@Override public Void call() {
+					s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(destinationBucket, destinationKey, uploadId));
+					return null;
+				}
+			});
+			LOG.info("Aborted copy to {}/{}, upload {}.", destinationBucket, destinationKey, uploadId);
+		}
+		catch (Exception e) {
+			LOG.warn("Failed to abort upload {}, clean will remove it: {}", uploadId, e.toString());
+		}
 	}
 
 }
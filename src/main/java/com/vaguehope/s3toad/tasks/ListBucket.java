@@ -1,41 +1,111 @@
 package com.vaguehope.s3toad.tasks;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.ListingWriter;
+import com.vaguehope.s3toad.util.S3Helper;
+import com.vaguehope.s3toad.util.SnapshotWriter;
 
 public class ListBucket {
 
 	private final AmazonS3 s3Client;
 	private final String bucket;
 	private final String prefix;
+	private final int listThreads;
+	private final boolean sorted;
+	private ListingWriter.Format format = ListingWriter.Format.TSV;
+	private File snapshot;
 
 	public ListBucket(final AmazonS3 s3Client, final String bucket, final String prefix) {
+		this(s3Client, bucket, prefix, 1, true);
+	}
+
+	/**
+	 * @param listThreads if more than 1, list partitions of the key space concurrently.
+	 * @param sorted when listing partitions, print in key order rather than as listed.
+	 */
+	public ListBucket(final AmazonS3 s3Client, final String bucket, final String prefix, final int listThreads, final boolean sorted) {
 		this.s3Client = s3Client;
 		this.bucket = bucket;
 		this.prefix = prefix;
+		this.listThreads = listThreads;
+		this.sorted = sorted;
+	}
+
+	/**
+	 * Format of each object printed to stdout.
+	 * For formats other than TSV the summary goes to stderr so stdout stays machine readable.
+	 */
+	public void setFormat(final ListingWriter.Format format) {
+		this.format = format;
 	}
 
-	public void run() {
+	/**
+	 * Write objects to this snapshot file, for diff, instead of printing them.
+	 * Snapshots are always listed in key order.
+	 */
+	public void setSnapshot(final File snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public void run() throws Exception {
+		if (this.snapshot != null) {
+			runSnapshot();
+			return;
+		}
+
 		long totalSize = 0;
 		long objectCount = 0;
 
-		ObjectListing objectListing = this.s3Client.listObjects(this.bucket, this.prefix);
-		// FIXME use nice ASCII table code from Lookfar.
-		while (true) {
-			for (S3ObjectSummary o : objectListing.getObjectSummaries()) {
+		// Not System.out, which flushes every line.
+		final ListingWriter out = ListingWriter.create(this.format, new FileOutputStream(FileDescriptor.out));
+		final KeyListing listing = S3Helper.listKeys(this.s3Client, this.bucket, this.prefix, this.listThreads, this.sorted);
+		try {
+			// FIXME use nice ASCII table code from Lookfar.
+			while (listing.hasNext()) {
+				final S3ObjectSummary o = listing.next();
 				++objectCount;
 				totalSize += o.getSize();
-				System.out.println(String.format("%d\t%d\t%s\t%s", o.getLastModified().getTime(), o.getSize(), o.getKey(), o.getETag()));
+				out.write(o);
 			}
-			if (objectListing.getNextMarker() == null) break;
-			objectListing = this.s3Client.listObjects(new ListObjectsRequest()
-					.withBucketName(this.bucket)
-					.withPrefix(this.prefix)
-					.withMarker(objectListing.getNextMarker()));
+		}
+		finally {
+			listing.stop();
+			out.flush();
 		}
 
-		System.out.println("bucket=" + this.bucket + " objects=" + objectCount + " total_size=" + totalSize);
+		final String summary = "bucket=" + this.bucket + " objects=" + objectCount + " total_size=" + totalSize;
+		if (this.format == ListingWriter.Format.TSV) {
+			System.out.println(summary);
+		}
+		else {
+			System.err.println(summary);
+		}
+	}
+
+	private void runSnapshot() throws Exception {
+		long totalSize = 0;
+		final SnapshotWriter out = new SnapshotWriter(this.snapshot, this.bucket, this.prefix);
+		final KeyListing listing = S3Helper.listKeys(this.s3Client, this.bucket, this.prefix, this.listThreads, true);
+		try {
+			while (listing.hasNext()) {
+				final S3ObjectSummary o = listing.next();
+				totalSize += o.getSize();
+				out.write(o);
+			}
+			out.commit();
+		}
+		finally {
+			listing.stop();
+			out.close();
+		}
+		System.out.println("bucket=" + this.bucket + " objects=" + out.getCount() + " total_size=" + totalSize
+				+ " snapshot=" + this.snapshot.getAbsolutePath() + " snapshot_size=" + this.snapshot.length());
 	}
+
 }
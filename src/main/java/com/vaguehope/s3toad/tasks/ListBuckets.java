@@ -1,7 +1,11 @@
 package com.vaguehope.s3toad.tasks;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.Bucket;
+import com.vaguehope.s3toad.util.RetryPolicy;
 
 public class ListBuckets {
 
@@ -11,8 +15,14 @@ public class ListBuckets {
 		this.s3Client = s3Client;
 	}
 
-	public void run() {
-		for (Bucket b : this.s3Client.listBuckets()) {
+	public void run() throws Exception {
+		final List<Bucket> buckets = RetryPolicy.shared().call("listBuckets", new Callable<List<Bucket>>() {
+			@Override
+			public List<Bucket> call() {
+				return ListBuckets.this.s3Client.listBuckets();
+			}
+		});
+		for (Bucket b : buckets) {
 			System.out.print("bucket=");
 			System.out.println(b.getName());
 		}
@@ -1,36 +1,162 @@
 package com.vaguehope.s3toad.tasks;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.MultipartUpload;
 import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.S3Helper;
 
+/**
+ * List incomplete multipart uploads, every page of them,
+ * optionally with the parts and bytes each is storing.
+ */
 public class Status {
 
 	private final AmazonS3 s3Client;
 	private final String bucket;
+	private final String prefix;
+	private final int threads;
+	private final long olderThanMillis;
+	private boolean countParts = false;
 
 	public Status (AmazonS3 s3Client, String bucket) {
+		this(s3Client, bucket, null, 1, 0);
+	}
+
+	/**
+	 * @param prefix only uploads of keys with this prefix, may be null.
+	 * @param olderThanMillis only uploads started at least this long ago.
+	 */
+	public Status (AmazonS3 s3Client, String bucket, String prefix, int threads, long olderThanMillis) {
 		this.s3Client = s3Client;
 		this.bucket = bucket;
+		this.prefix = prefix;
+		this.threads = threads;
+		this.olderThanMillis = olderThanMillis;
+	}
+
+	/**
+	 * List each upload's parts, several uploads at once, to total the bytes they store.
+	 */
+	public void setCountParts (boolean countParts) {
+		this.countParts = countParts;
+	}
+
+	public void run () throws Exception {
+		final long now = System.currentTimeMillis();
+		final long cutoff = now - this.olderThanMillis;
+		final ExecutorService executor = this.countParts ? ExecutorFactory.newFixedThreadPool("parts", this.threads) : null;
+		long listed = 0;
+		long matched = 0;
+		long totalParts = 0;
+		long totalBytes = 0;
+		long gone = 0;
+		try {
+			final ListMultipartUploadsRequest req = new ListMultipartUploadsRequest(this.bucket).withPrefix(this.prefix);
+			while (true) {
+				final MultipartUploadListing page = S3Helper.listMultipartUploads(this.s3Client, req);
+				listed += page.getMultipartUploads().size();
+
+				final List<MultipartUpload> uploads = new ArrayList<MultipartUpload>();
+				final List<Future<long[]>> sizes = new ArrayList<Future<long[]>>();
+				for (final MultipartUpload u : page.getMultipartUploads()) {
+					if (u.getInitiated().getTime() > cutoff) continue;
+					uploads.add(u);
+					if (executor != null) {
+						sizes.add(executor.submit(new Callable<long[]>() {
+							@Override
+							public long[] call () throws Exception {
+								return sumParts(u);
+							}
+						}));
+					}
+				}
+
+				for (int i = 0; i < uploads.size(); i++) {
+					final MultipartUpload u = uploads.get(i);
+					long ageDays = TimeUnit.MILLISECONDS.toDays(now - u.getInitiated().getTime());
+					System.err.print("upload: key=");
+					System.err.print(u.getKey());
+					System.err.print(" id=");
+					System.err.print(u.getUploadId());
+					System.err.print(" age=");
+					System.err.print(ageDays);
+					System.err.print("d");
+					if (executor != null) {
+						final long[] partsAndBytes = sizes.get(i).get();
+						if (partsAndBytes == null) {
+							gone += 1;
+							System.err.print(" gone");
+						}
+						else {
+							totalParts += partsAndBytes[0];
+							totalBytes += partsAndBytes[1];
+							System.err.print(" parts=");
+							System.err.print(partsAndBytes[0]);
+							System.err.print(" bytes=");
+							System.err.print(partsAndBytes[1]);
+						}
+					}
+					System.err.println();
+				}
+				matched += uploads.size();
+
+				if (!page.isTruncated()) break;
+				req.setKeyMarker(page.getNextKeyMarker());
+				req.setUploadIdMarker(page.getNextUploadIdMarker());
+			}
+		}
+		finally {
+			if (executor != null) executor.shutdownNow();
+		}
+
+		System.err.print("uploads=" + listed + " matched=" + matched);
+		if (executor != null) System.err.print(" parts=" + totalParts + " bytes=" + totalBytes + " gone=" + gone);
+		System.err.println();
 	}
 
-	public void run () {
-		MultipartUploadListing listMultipartUploads = this.s3Client.listMultipartUploads(new ListMultipartUploadsRequest(this.bucket));
-		System.err.println("uploads=" + listMultipartUploads.getMultipartUploads().size());
-		for (MultipartUpload u : listMultipartUploads.getMultipartUploads()) {
-			long ageDays = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - u.getInitiated().getTime());
-			System.err.print("upload: key=");
-			System.err.print(u.getKey());
-			System.err.print(" id=");
-			System.err.print(u.getUploadId());
-			System.err.print(" age=");
-			System.err.print(ageDays);
-			System.err.print("d");
-			System.err.println();
+	/**
+	 * @return [part count, bytes], or null if the upload was completed or aborted since it was listed.
+	 */
+	private long[] sumParts (final MultipartUpload u) throws Exception {
+		long parts = 0;
+		long bytes = 0;
+		final ListPartsRequest req = new ListPartsRequest(this.bucket, u.getKey(), u.getUploadId());
+		while (true) {
+			final PartListing page;
+			try {
+				page = RetryPolicy.shared().call("listParts", new Callable<PartListing>() {
+					@Override
+					public PartListing call () {
+						return Status.this.s3Client.listParts(req);
+					}
+				});
+			}
+			catch (AmazonServiceException e) {
+				if (S3Helper.isNoSuchUpload(e)) return null;
+				throw e;
+			}
+			for (final PartSummary p : page.getParts()) {
+				parts += 1;
+				bytes += p.getSize();
+			}
+			if (!page.isTruncated()) break;
+			req.setPartNumberMarker(page.getNextPartNumberMarker());
 		}
+		return new long[] { parts, bytes };
 	}
 
 }
@@ -0,0 +1,249 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.vaguehope.s3toad.util.ETagHelper;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.FileHelper;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.S3Helper;
+import com.vaguehope.s3toad.util.SortedFileWalk;
+import com.vaguehope.s3toad.util.TransferRunner;
+
+/**
+ * Make a prefix match a local directory, or the other way round,
+ * transferring only what is missing or changed and never deleting.
+ * <p>
+ * The listing and a walk of the directory are both streamed in key order and merged,
+ * so an unchanged tree costs one listing pass and no per-object requests.
+ */
+public class Sync {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Sync.class);
+
+	public static enum Direction {
+		UP,
+		DOWN;
+	}
+
+	public static enum Compare {
+		/**
+		 * Changed if sizes differ.
+		 */
+		SIZE,
+		/**
+		 * Changed if sizes differ, or going up the local file is newer than the object,
+		 * or going down the local file's mtime is not the object's, as set when it was downloaded.
+		 */
+		MTIME,
+		/**
+		 * Changed if sizes differ or the local file's MD5 based ETag does not match.
+		 * Reads every local file of the same size, hashing several at once on the transfer threads.
+		 * An object uploaded in parts has an ETag of its parts, which only matches if it was uploaded
+		 * with the same --chunksize as this sync uses, otherwise every such file is seen as changed.
+		 */
+		ETAG;
+	}
+
+	private final AmazonS3 s3Client;
+	private final Direction direction;
+	private final File dir;
+	private final String bucket;
+	private final String prefix;
+	private final int threads;
+	private final long chunkSize;
+	private final Compare compare;
+	private final Map<String, String> metadata;
+	private long singlePutThreshold = -1;
+	private int listThreads = 1;
+
+	/**
+	 * @param prefix may be null, otherwise a / is added if it does not already end with one.
+	 */
+	public Sync(final AmazonS3 s3Client, final Direction direction, final File dir, final String bucket, final String prefix,
+			final int threads, final long chunkSize, final Compare compare, final Map<String, String> metadata) {
+		this.s3Client = s3Client;
+		this.direction = direction;
+		this.dir = dir;
+		this.bucket = bucket;
+		this.prefix = S3Helper.dirPrefix(prefix);
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.compare = compare;
+		this.metadata = metadata;
+	}
+
+	public void setSinglePutThreshold(final long singlePutThreshold) {
+		this.singlePutThreshold = singlePutThreshold;
+	}
+
+	/**
+	 * If more than 1, list partitions of the prefix concurrently, still merged back into key order.
+	 * Partitions ahead of the sync keep listing into a bounded buffer, see PartitionedListing.
+	 */
+	public void setListThreads(final int listThreads) {
+		this.listThreads = listThreads;
+	}
+
+	public void run() throws Exception {
+		final KeyListing remote = S3Helper.listKeys(this.s3Client, this.bucket, this.prefix, this.listThreads, true);
+		final Iterator<File> local = new SortedFileWalk(this.dir);
+
+		final TransferRunner runner = new TransferRunner("sync", this.threads, "transfer");
+		final ExecutorService partExecutor = this.direction == Direction.UP ? ExecutorFactory.newFixedThreadPool("wrkr", this.threads) : null;
+		long unchangedCount = 0;
+		final long startTime = System.currentTimeMillis();
+		try {
+			S3ObjectSummary o = nextObject(remote);
+			File f = local.hasNext() ? local.next() : null;
+			while (o != null || f != null) {
+				final String objPath = o != null ? o.getKey().substring(this.prefix.length()) : null;
+				final String filePath = f != null ? FileHelper.getRelativePath(this.dir, f) : null;
+				final int c;
+				if (o == null) {
+					c = -1;
+				}
+				else if (f == null) {
+					c = 1;
+				}
+				else {
+					c = S3Helper.KEY_ORDER.compare(filePath, objPath);
+				}
+
+				Callable<Boolean> transfer = null;
+				if (c < 0) {
+					if (this.direction == Direction.UP) transfer = upload(f, filePath, partExecutor);
+				}
+				else if (c > 0) {
+					if (this.direction == Direction.DOWN) transfer = download(o, new File(this.dir, objPath));
+				}
+				else if (f.length() == o.getSize() && this.compare == Compare.ETAG) {
+					// Hashing is slow, so it is done on the transfer threads rather than holding up the merge.
+					transfer = transferIfETagChanged(f, o, filePath, partExecutor);
+				}
+				else if (changed(f, o)) {
+					transfer = this.direction == Direction.UP ? upload(f, filePath, partExecutor) : download(o, f);
+				}
+				else {
+					unchangedCount += 1;
+				}
+
+				if (transfer != null) {
+					final String name = this.direction == Direction.UP ? f.getAbsolutePath() : o.getKey();
+					final long size = this.direction == Direction.UP ? f.length() : o.getSize();
+					if (!runner.submit(name, size, transfer)) break;
+				}
+
+				if (c <= 0) f = local.hasNext() ? local.next() : null;
+				if (c >= 0) o = nextObject(remote);
+			}
+			runner.awaitAll();
+		}
+		finally {
+			remote.stop();
+			runner.shutdownNow();
+			if (partExecutor != null) partExecutor.shutdownNow();
+		}
+
+		final long millis = Math.max(1, System.currentTimeMillis() - startTime);
+		LOG.info("transfered={} unchanged={} bytes={} duration={}s files/s={} bytes/s={}",
+				runner.getTransferedCount(), unchangedCount + runner.getUnchangedCount(), runner.getTransferedBytes(), TimeUnit.MILLISECONDS.toSeconds(millis),
+				runner.getTransferedCount() * 1000L / millis, runner.getTransferedBytes() * 1000L / millis);
+
+		final Exception e = runner.getFailure();
+		if (e != null) throw new IOException("Sync failed: " + e.getMessage(), e);
+	}
+
+	/**
+	 * Skips directory markers, which have no local equivalent.
+	 */
+	private static S3ObjectSummary nextObject(final Iterator<S3ObjectSummary> remote) {
+		while (remote.hasNext()) {
+			final S3ObjectSummary o = remote.next();
+			if (!o.getKey().endsWith("/")) return o;
+		}
+		return null;
+	}
+
+	/**
+	 * For SIZE and MTIME, which only look at what is already to hand.
+	 */
+	private boolean changed(final File file, final S3ObjectSummary object) {
+		if (file.length() != object.getSize()) return true;
+		switch (this.compare) {
+			case SIZE:
+				return false;
+			case MTIME:
+				// Whole seconds, as some file systems do not keep milliseconds.
+				final long fileSeconds = TimeUnit.MILLISECONDS.toSeconds(file.lastModified());
+				final long objectSeconds = TimeUnit.MILLISECONDS.toSeconds(object.getLastModified().getTime());
+				if (this.direction == Direction.UP) return fileSeconds > objectSeconds;
+				return fileSeconds != objectSeconds;
+			default:
+				throw new IllegalStateException("Unknown compare: " + this.compare);
+		}
+	}
+
+	/**
+	 * Returns false without transferring if the local file's ETag matches the object's.
+	 */
+	private Callable<Boolean> transferIfETagChanged(final File file, final S3ObjectSummary object, final String relativePath, final ExecutorService partExecutor) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				final String eTag = ETagHelper.calculate(file, ETagHelper.isMultipart(object.getETag()), Sync.this.chunkSize);
+				if (eTag.equals(object.getETag())) return false;
+				final Callable<Boolean> transfer = Sync.this.direction == Direction.UP ? upload(file, relativePath, partExecutor) : download(object, file);
+				return transfer.call();
+			}
+		};
+	}
+
+	private Callable<Boolean> upload(final File file, final String relativePath, final ExecutorService partExecutor) {
+		final String key = this.prefix + relativePath;
+		LOG.info("{} --> {}", file.getAbsolutePath(), key);
+		final UploadMulti u = new UploadMulti(this.s3Client, file, this.bucket, key, partExecutor, this.chunkSize, this.metadata);
+		u.setSinglePutThreshold(this.singlePutThreshold);
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				u.run();
+				return true;
+			}
+		};
+	}
+
+	private Callable<Boolean> download(final S3ObjectSummary object, final File file) {
+		LOG.info("{} --> {}", object.getKey(), file.getAbsolutePath());
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				final File parent = file.getParentFile();
+				if (!parent.mkdirs() && !parent.isDirectory()) throw new IOException("Failed mkdirs: " + parent.getAbsolutePath());
+				RetryPolicy.shared().call("Download of " + object.getKey(), new Callable<ObjectMetadata>() {
+					@Override
+					public ObjectMetadata call() {
+						return Sync.this.s3Client.getObject(new GetObjectRequest(object.getBucketName(), object.getKey()), file);
+					}
+				});
+				file.setLastModified(object.getLastModified().getTime());
+				return true;
+			}
+		};
+	}
+
+}
@@ -1,50 +1,88 @@
 package com.vaguehope.s3toad.tasks;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.model.UploadPartResult;
-import com.vaguehope.s3toad.C;
+import com.vaguehope.s3toad.util.AimdLimiter;
+import com.vaguehope.s3toad.util.BufferPool;
+import com.vaguehope.s3toad.util.ByteBudget;
+import com.vaguehope.s3toad.util.FailFastCollector;
 import com.vaguehope.s3toad.util.PrgTracker;
-import com.vaguehope.s3toad.util.ThreadHelper;
+import com.vaguehope.s3toad.util.RetryPolicy;
+import com.vaguehope.s3toad.util.UploadJournal;
 
 public class UploadMulti {
 
 	protected static final Logger LOG = LoggerFactory.getLogger(UploadMulti.class);
 
 	public static final long DEFAULT_CHUNK_SIZE = 64L * 1024L * 1024L;
-	private static final int PART_UPLOAD_RETRY_COUNT = 5;
+	/**
+	 * S3's limit, so a stream can be at most chunkSize x MAX_PARTS bytes.
+	 */
+	public static final int MAX_PARTS = 10000;
+	/**
+	 * S3 will not accept a single PUT larger than this.
+	 */
+	public static final long MAX_SINGLE_PUT = 5L * 1024L * 1024L * 1024L;
+	private static final RetryPolicy RETRY = RetryPolicy.shared();
+
+	private static final Comparator<PartETag> PART_NUMBER_ORDER = new Comparator<PartETag>() {
+		@Override
+		public int compare(final PartETag a, final PartETag b) {
+			return a.getPartNumber() < b.getPartNumber() ? -1 : (a.getPartNumber() == b.getPartNumber() ? 0 : 1);
+		}
+	};
 
 	private final AmazonS3 s3Client;
 	private final File file;
+	private final InputStream stream;
+	private final int streamBuffers;
 	private final String bucket;
 	private final String key;
 	private final ExecutorService executor;
 	private final long chunkSize;
 	private final Map<String, String> metadata;
+	private long singlePutThreshold = -1;
+	private boolean resumable = false;
+	private ByteBudget byteBudget;
+	private AimdLimiter limiter;
+	private volatile String eTag;
 
 	public UploadMulti(final AmazonS3 s3Client, final File file, final String bucket, final String key, final int threads, final long chunkSize, final Map<String, String> metadata) {
 		this.s3Client = s3Client;
 		this.file = file;
+		this.stream = null;
+		this.streamBuffers = 0;
 		this.bucket = bucket;
 		this.key = key;
 		this.executor = Executors.newFixedThreadPool(threads);
@@ -55,6 +93,8 @@ public class UploadMulti {
 	public UploadMulti(final AmazonS3 s3Client, final File file, final String bucket, final String key, final int threads, final long chunkSize) {
 		this.s3Client = s3Client;
 		this.file = file;
+		this.stream = null;
+		this.streamBuffers = 0;
 		this.bucket = bucket;
 		this.key = key;
 		this.executor = Executors.newFixedThreadPool(threads);
@@ -65,6 +105,8 @@ public class UploadMulti {
 	public UploadMulti(final AmazonS3 s3Client, final File file, final String bucket, final String key, final ExecutorService executor, final long chunkSize, final Map<String, String> metadata) {
 		this.s3Client = s3Client;
 		this.file = file;
+		this.stream = null;
+		this.streamBuffers = 0;
 		this.bucket = bucket;
 		this.key = key;
 		this.executor = executor;
@@ -75,6 +117,8 @@ public class UploadMulti {
 	public UploadMulti(final AmazonS3 s3Client, final File file, final String bucket, final String key, final ExecutorService executor, final long chunkSize) {
 		this.s3Client = s3Client;
 		this.file = file;
+		this.stream = null;
+		this.streamBuffers = 0;
 		this.bucket = bucket;
 		this.key = key;
 		this.executor = executor;
@@ -82,6 +126,60 @@ public class UploadMulti {
 		this.metadata = new HashMap<String, String>();
 	}
 
+	/**
+	 * Upload from a stream of unknown length, e.g. stdin.
+	 * At most threads x chunkSize bytes of the stream are held in memory at once,
+	 * and the stream can be at most chunkSize x MAX_PARTS bytes.
+	 */
+	public UploadMulti(final AmazonS3 s3Client, final InputStream stream, final String bucket, final String key, final int threads, final long chunkSize, final Map<String, String> metadata) {
+		if (chunkSize > Integer.MAX_VALUE) throw new IllegalArgumentException("chunkSize too large for stream upload: " + chunkSize);
+		this.s3Client = s3Client;
+		this.file = null;
+		this.stream = stream;
+		this.streamBuffers = threads;
+		this.bucket = bucket;
+		this.key = key;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.chunkSize = chunkSize;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Objects smaller than this are sent with a single PUT instead of a multipart upload, at most MAX_SINGLE_PUT.
+	 * Defaults to the chunk size.
+	 */
+	public void setSinglePutThreshold(final long singlePutThreshold) {
+		this.singlePutThreshold = Math.min(singlePutThreshold, MAX_SINGLE_PUT);
+	}
+
+	/**
+	 * Keep a local journal of the upload and its completed parts,
+	 * and on failure leave the upload in place to be resumed rather than aborting it.
+	 * Only applies to file uploads.
+	 */
+	public void setResumable(final boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * Shared cap on bytes of parts queued or in flight, for when many uploads share one executor.
+	 */
+	public void setByteBudget(final ByteBudget byteBudget) {
+		this.byteBudget = byteBudget;
+	}
+
+	/**
+	 * Adaptively cap how many of this upload's parts run at once, may be shared between uploads.
+	 * The executor should have at least the limiter's max threads.
+	 */
+	public void setConcurrencyLimiter(final AimdLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	private long getSinglePutThreshold() {
+		return this.singlePutThreshold < 0 ? this.chunkSize : this.singlePutThreshold;
+	}
+
 	public void dispose() {
 		this.executor.shutdown();
 	}
@@ -90,7 +188,18 @@ public class UploadMulti {
 		return this.file;
 	}
 
+	/**
+	 * ETag of the object once run() has uploaded it, otherwise null.
+	 */
+	public String getETag () {
+		return this.eTag;
+	}
+
 	public void run() throws Exception {
+		if (this.stream != null) {
+			runStream();
+			return;
+		}
 		if (!this.file.exists()) {
 			LOG.warn("vanished={}", this.file.getAbsolutePath());
 			return;
@@ -98,80 +207,285 @@ public class UploadMulti {
 		final long startTime = System.currentTimeMillis();
 		final PrgTracker tracker = new PrgTracker(LOG);
 		final long contentLength = this.file.length();
-		final List<Future<UploadPartResult>> uploadFutures = new ArrayList<Future<UploadPartResult>>();
+		final FailFastCollector<UploadPartResult> uploads = new FailFastCollector<UploadPartResult>(this.executor);
 		// FIXME specify MD5.
 		final ObjectMetadata objMetadata = new ObjectMetadata();
 		objMetadata.setUserMetadata(this.metadata);
-		final InitiateMultipartUploadResult initResponse = initiateMultipartUpload(new InitiateMultipartUploadRequest(this.bucket, this.key, objMetadata));
+
+		if (contentLength < getSinglePutThreshold()) {
+			putObject(new PutObjectRequest(this.bucket, this.key, this.file)
+					.withMetadata(objMetadata)
+					.withProgressListener(tracker), null, 0);
+			LOG.info("contentLength={} parts=0 duration={}s", contentLength, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+			return;
+		}
+
+		final UploadJournal journal = this.resumable ? new UploadJournal(this.bucket, this.key, this.file, this.chunkSize) : null;
+		final Map<Integer, PartETag> uploadedParts = new HashMap<Integer, PartETag>();
+		final String uploadId = startOrResumeUpload(objMetadata, journal, uploadedParts);
 		try {
+			final List<PartETag> partETags = new ArrayList<PartETag>();
 			long filePosition = 0;
 			for (int i = 1; filePosition < contentLength; i++) {
 				long partSize = Math.min(this.chunkSize, (contentLength - filePosition));
+				uploads.checkFailures();
+				final PartETag uploaded = uploadedParts.get(i);
+				if (uploaded != null) {
+					partETags.add(uploaded);
+				}
+				else {
+					submitPart(uploads, new PartUploader(this.s3Client, filePartRequest(uploadId, i, filePosition, partSize, tracker), journal, this.limiter), partSize);
+				}
+				filePosition += partSize;
+			}
+
+			for (UploadPartResult result : uploads.awaitAll()) {
+				partETags.add(result.getPartETag());
+			}
+			Collections.sort(partETags, PART_NUMBER_ORDER);
+			completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucket, this.key, uploadId, partETags));
+			if (journal != null) journal.delete();
+
+			LOG.info("contentLength={} parts={} resumed={} duration={}s",
+					contentLength, partETags.size(), partETags.size() - uploads.size(), TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+		}
+		catch (Exception e) {
+			uploads.cancelAll();
+			if (journal != null) {
+				journal.close();
+				LOG.info("Upload {} left in place to be resumed, journal={}", uploadId, journal.getJournalFile().getAbsolutePath());
+			}
+			else {
+				abortMultipartUpload(uploadId);
+			}
+			throw e;
+		}
+	}
+
+	private UploadPartRequest filePartRequest(final String uploadId, final int partNumber, final long filePosition, final long partSize, final PrgTracker tracker) {
+		final UploadPartRequest req = new UploadPartRequest()
+				.withBucketName(this.bucket).withKey(this.key)
+				.withUploadId(uploadId).withPartNumber(partNumber)
+				.withFileOffset(filePosition)
+				.withFile(this.file)
+				.withPartSize(partSize);
+		if (tracker != null) req.setProgressListener(tracker);
+		return req;
+	}
+
+	/**
+	 * Reuses the upload recorded in the journal if S3 still has it,
+	 * filling uploadedParts with the parts S3 confirms are there at the expected size.
+	 */
+	private String startOrResumeUpload(final ObjectMetadata objMetadata, final UploadJournal journal, final Map<Integer, PartETag> uploadedParts) throws Exception {
+		if (journal != null && journal.getStaleUploadId() != null) {
+			LOG.info("File changed since upload {} was started, aborting it.", journal.getStaleUploadId());
+			abortMultipartUpload(journal.getStaleUploadId());
+		}
+
+		if (journal != null && journal.getUploadId() != null) {
+			final String uploadId = journal.getUploadId();
+			try {
+				final long contentLength = this.file.length();
+				PartListing listing = listParts(new ListPartsRequest(this.bucket, this.key, uploadId));
+				while (true) {
+					for (final PartSummary part : listing.getParts()) {
+						final long offset = (part.getPartNumber() - 1) * this.chunkSize;
+						final long expectedSize = Math.min(this.chunkSize, contentLength - offset);
+						final PartETag journaled = journal.getParts().get(part.getPartNumber());
+						if (part.getSize() == expectedSize && (journaled == null || journaled.getETag().equals(part.getETag()))) {
+							uploadedParts.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getETag()));
+						}
+					}
+					if (!listing.isTruncated()) break;
+					final ListPartsRequest next = new ListPartsRequest(this.bucket, this.key, uploadId);
+					next.setPartNumberMarker(listing.getNextPartNumberMarker());
+					listing = listParts(next);
+				}
+				journal.resume();
+				LOG.info("resuming={} uploadedParts={}", uploadId, uploadedParts.size());
+				return uploadId;
+			}
+			catch (AmazonServiceException e) {
+				if (e.getStatusCode() != 404) throw e;
+				LOG.info("Upload {} no longer exists, starting again.", uploadId);
+			}
+		}
+
+		final InitiateMultipartUploadResult initResponse = initiateMultipartUpload(new InitiateMultipartUploadRequest(this.bucket, this.key, objMetadata));
+		if (journal != null) journal.start(initResponse.getUploadId());
+		return initResponse.getUploadId();
+	}
+
+	private void runStream() throws Exception {
+		final long startTime = System.currentTimeMillis();
+		final PrgTracker tracker = new PrgTracker(LOG);
+		final BufferPool buffers = new BufferPool((int) this.chunkSize, this.streamBuffers);
+		final ObjectMetadata objMetadata = new ObjectMetadata();
+		objMetadata.setUserMetadata(this.metadata);
+
+		byte[] buffer = buffers.take();
+		int length = readFully(this.stream, buffer);
+		if (length < buffer.length && length < getSinglePutThreshold()) {
+			objMetadata.setContentLength(length);
+			putObject(new PutObjectRequest(this.bucket, this.key, (InputStream) null, objMetadata)
+					.withProgressListener(tracker), buffer, length);
+			LOG.info("contentLength={} parts=0 duration={}s", length, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+			return;
+		}
+
+		final FailFastCollector<UploadPartResult> uploads = new FailFastCollector<UploadPartResult>(this.executor);
+		final InitiateMultipartUploadResult initResponse = initiateMultipartUpload(new InitiateMultipartUploadRequest(this.bucket, this.key, objMetadata));
+		try {
+			long contentLength = 0;
+			for (int i = 1; length > 0; i++) {
+				uploads.checkFailures();
+				if (i > MAX_PARTS) {
+					throw new IOException("Stream is longer than " + MAX_PARTS + " parts of " + this.chunkSize
+							+ " bytes, the most S3 allows.  Use a larger --chunksize.");
+				}
 				UploadPartRequest uploadRequest = new UploadPartRequest()
 						.withBucketName(this.bucket).withKey(this.key)
 						.withUploadId(initResponse.getUploadId()).withPartNumber(i)
-						.withFileOffset(filePosition)
-						.withFile(this.file)
-						.withPartSize(partSize)
+						.withPartSize(length)
 						.withProgressListener(tracker);
-				uploadFutures.add(this.executor.submit(new PartUploader(this.s3Client, uploadRequest)));
-				filePosition += partSize;
+				submitPart(uploads, new BufferPartUploader(this.s3Client, uploadRequest, this.limiter, buffers, buffer), length);
+				contentLength += length;
+
+				buffer = buffers.take();
+				length = readFully(this.stream, buffer);
 			}
+			buffers.release(buffer);
 
 			List<PartETag> partETags = new ArrayList<PartETag>();
-			for (Future<UploadPartResult> future : uploadFutures) {
-				partETags.add(future.get().getPartETag());
+			for (UploadPartResult result : uploads.awaitAll()) {
+				partETags.add(result.getPartETag());
 			}
+			Collections.sort(partETags, PART_NUMBER_ORDER);
 			completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucket, this.key, initResponse.getUploadId(), partETags));
 
 			LOG.info("contentLength={} parts={} duration={}s",
-					contentLength, uploadFutures.size(), TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
+					contentLength, uploads.size(), TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime));
 		}
 		catch (Exception e) {
-			this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.key, initResponse.getUploadId()));
+			uploads.cancelAll();
+			abortMultipartUpload(initResponse.getUploadId());
 			throw e;
 		}
 	}
 
-	private InitiateMultipartUploadResult initiateMultipartUpload(final InitiateMultipartUploadRequest initRequest) throws Exception {
-		int attempt = 0;
-		while (true) {
-			attempt++;
-			try {
-				return this.s3Client.initiateMultipartUpload(initRequest);
+	/**
+	 * If there is a byte budget, blocks until the part fits in it.
+	 * The part's bytes are returned to the budget when it completes or is cancelled.
+	 */
+	private void submitPart(final FailFastCollector<UploadPartResult> uploads, final Callable<UploadPartResult> uploader, final long partSize) throws InterruptedException {
+		final ByteBudget budget = this.byteBudget;
+		if (budget == null) {
+			uploads.submit(uploader, null);
+			return;
+		}
+
+		budget.acquire(partSize);
+		try {
+			uploads.submit(uploader, new Runnable() {
+				@Override
+				public void run() {
+					budget.release(partSize);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			budget.release(partSize);
+			throw e;
+		}
+	}
+
+	/**
+	 * Fill the buffer unless the stream ends first.
+	 * Returns number of bytes read, 0 at end of stream.
+	 */
+	private static int readFully(final InputStream is, final byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			final int n = is.read(buffer, total, buffer.length - total);
+			if (n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * If buffer is not null the request body is read from it, afresh for each attempt.
+	 */
+	private void putObject(final PutObjectRequest putRequest, final byte[] buffer, final int length) throws Exception {
+		RETRY.call("putObject", new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (buffer != null) putRequest.setInputStream(new ByteArrayInputStream(buffer, 0, length));
+				UploadMulti.this.eTag = UploadMulti.this.s3Client.putObject(putRequest).getETag();
+				return null;
+			}
+		});
+	}
+
+	private PartListing listParts(final ListPartsRequest request) throws Exception {
+		return RETRY.call("listParts", new Callable<PartListing>() {
+			@Override
+			public PartListing call() {
+				return UploadMulti.this.s3Client.listParts(request);
 			}
-			catch (Exception e) {
-				if (attempt >= PART_UPLOAD_RETRY_COUNT) throw e;
-				LOG.info("initiateMultipartUpload attempt {} failed: '{}'.  It will be retried.", attempt, e.getMessage());
-				ThreadHelper.sleepQuietly(C.AWS_API_RETRY_DELAY_MILLES);
+		});
+	}
+
+	private InitiateMultipartUploadResult initiateMultipartUpload(final InitiateMultipartUploadRequest initRequest) throws Exception {
+		return RETRY.call("initiateMultipartUpload", new Callable<InitiateMultipartUploadResult>() {
+			@Override
+			public InitiateMultipartUploadResult call() {
+				return UploadMulti.this.s3Client.initiateMultipartUpload(initRequest);
 			}
-		}
+		});
 	}
 
 	private void completeMultipartUpload(final CompleteMultipartUploadRequest compRequest) throws Exception {
-		int attempt = 0;
-		while (true) {
-			attempt++;
-			try {
-				this.s3Client.completeMultipartUpload(compRequest);
-				return;
-			}
-			catch (Exception e) {
-				if (attempt >= PART_UPLOAD_RETRY_COUNT) throw e;
-				LOG.info("completeMultipartUpload attempt {} failed: '{}'.  It will be retried.", attempt, e.getMessage());
-				ThreadHelper.sleepQuietly(C.AWS_API_RETRY_DELAY_MILLES);
+		RETRY.call("completeMultipartUpload", new Callable<Void>() {
+			@Override
+			public Void call() {
+				UploadMulti.this.eTag = UploadMulti.this.s3Client.completeMultipartUpload(compRequest).getETag();
+				return null;
 			}
+		});
+	}
+
+	/**
+	 * Failure is only logged, the caller is already failing and clean will find what is left.
+	 */
+	private void abortMultipartUpload(final String uploadId) {
+		try {
+			RETRY.call("abortMultipartUpload", new Callable<Void>() {
+				@Override
+				public Void call() {
+					UploadMulti.this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(UploadMulti.this.bucket, UploadMulti.this.key, uploadId));
+					return null;
+				}
+			});
+		}
+		catch (Exception e) {
+			LOG.warn("Failed to abort upload {}: {}", uploadId, e.toString());
 		}
 	}
 
 	private static class PartUploader implements Callable<UploadPartResult> {
 
-		private final AmazonS3 s3Client;
-		private final UploadPartRequest uploadRequest;
+		protected final AmazonS3 s3Client;
+		protected final UploadPartRequest uploadRequest;
+		private final UploadJournal journal;
+		private final AimdLimiter limiter;
 
-		public PartUploader(final AmazonS3 s3Client, final UploadPartRequest uploadRequest) {
+		public PartUploader(final AmazonS3 s3Client, final UploadPartRequest uploadRequest, final UploadJournal journal, final AimdLimiter limiter) {
 			this.s3Client = s3Client;
 			this.uploadRequest = uploadRequest;
+			this.journal = journal;
+			this.limiter = limiter;
 		}
 
 		@Override
@@ -179,19 +493,25 @@ public class UploadMulti {
 			int attempt = 0;
 			while (true) {
 				attempt++;
+				if (this.limiter != null) this.limiter.acquire();
+				final long startTime = System.currentTimeMillis();
+				final UploadPartResult res;
 				try {
-					return uploadPart();
+					res = uploadPart();
 				}
 				catch (Exception e) {
-					if (attempt >= PART_UPLOAD_RETRY_COUNT) throw e;
-					LOG.info("Upload of part {} with length {} attempt {} failed: '{}'.  It will be retried.",
-							this.uploadRequest.getPartNumber(), this.uploadRequest.getPartSize(), attempt, e.getMessage());
-					ThreadHelper.sleepQuietly(C.AWS_API_RETRY_DELAY_MILLES);
+					if (this.limiter != null) this.limiter.failed(e);
+					if (!RETRY.shouldRetry("Upload of part " + this.uploadRequest.getPartNumber() + " with length " + this.uploadRequest.getPartSize(), attempt, e)) throw e;
+					continue;
 				}
+				if (this.limiter != null) this.limiter.succeeded(this.uploadRequest.getPartSize(), System.currentTimeMillis() - startTime);
+				RETRY.succeeded();
+				if (this.journal != null) this.journal.partUploaded(res.getPartETag());
+				return res;
 			}
 		}
 
-		private UploadPartResult uploadPart() {
+		protected UploadPartResult uploadPart() {
 			final long startTime = System.currentTimeMillis();
 			UploadPartResult res = this.s3Client.uploadPart(this.uploadRequest);
 			final long seconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime);
@@ -201,4 +521,37 @@ public class UploadMulti {
 
 	}
 
+	/**
+	 * Uploads a part held in a pooled buffer and returns the buffer to the pool when done.
+	 */
+	private static class BufferPartUploader extends PartUploader {
+
+		private final BufferPool buffers;
+		private final byte[] buffer;
+
+		public BufferPartUploader(final AmazonS3 s3Client, final UploadPartRequest uploadRequest, final AimdLimiter limiter, final BufferPool buffers, final byte[] buffer) {
+			super(s3Client, uploadRequest, null, limiter);
+			this.buffers = buffers;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public UploadPartResult call() throws Exception {
+			try {
+				return super.call();
+			}
+			finally {
+				this.buffers.release(this.buffer);
+			}
+		}
+
+		@Override
+		protected UploadPartResult uploadPart() {
+			// Fresh stream for each attempt so retries start from the beginning of the part.
+			this.uploadRequest.setInputStream(new ByteArrayInputStream(this.buffer, 0, (int) this.uploadRequest.getPartSize()));
+			return super.uploadPart();
+		}
+
+	}
+
 }
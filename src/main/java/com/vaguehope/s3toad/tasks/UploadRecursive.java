@@ -0,0 +1,185 @@
+package com.vaguehope.s3toad.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.vaguehope.s3toad.util.AimdLimiter;
+import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.FileHelper;
+import com.vaguehope.s3toad.util.KeyListing;
+import com.vaguehope.s3toad.util.S3Helper;
+import com.vaguehope.s3toad.util.TransferRunner;
+
+/**
+ * Upload every file under a local directory, several files at once.
+ * Keys are the file's path below the directory, after the prefix if there is one.
+ * Small files are each sent by a file thread, large files have their parts spread over a shared part pool.
+ */
+public class UploadRecursive {
+
+	private static final Logger LOG = LoggerFactory.getLogger(UploadRecursive.class);
+
+	private final AmazonS3 s3Client;
+	private final File dir;
+	private final String bucket;
+	private final String prefix;
+	private final int threads;
+	private final long chunkSize;
+	private final Map<String, String> metadata;
+	private long singlePutThreshold = -1;
+	private boolean skipExisting = false;
+	private int listThreads = 1;
+	private boolean resumable = false;
+	private AimdLimiter limiter;
+
+	/**
+	 * @param prefix may be null, otherwise a / is added if it does not already end with one.
+	 */
+	public UploadRecursive(final AmazonS3 s3Client, final File dir, final String bucket, final String prefix, final int threads, final long chunkSize, final Map<String, String> metadata) {
+		this.s3Client = s3Client;
+		this.dir = dir;
+		this.bucket = bucket;
+		this.prefix = S3Helper.dirPrefix(prefix);
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.metadata = metadata;
+	}
+
+	public void setSinglePutThreshold(final long singlePutThreshold) {
+		this.singlePutThreshold = singlePutThreshold;
+	}
+
+	/**
+	 * Lists the prefix first and skips files whose key already exists with the same size.
+	 */
+	public void setSkipExisting(final boolean skipExisting) {
+		this.skipExisting = skipExisting;
+	}
+
+	/**
+	 * For listing existing objects, if more than 1 list partitions of the prefix concurrently.
+	 */
+	public void setListThreads(final int listThreads) {
+		this.listThreads = listThreads;
+	}
+
+	public void setResumable(final boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * One adaptive limit on parts in flight, shared by all files.
+	 */
+	public void setConcurrencyLimiter(final AimdLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public void run() throws Exception {
+		final Map<String, Long> existing = this.skipExisting ? listExisting() : null;
+
+		final TransferRunner runner = new TransferRunner("file", this.threads, "upload");
+		final ExecutorService partExecutor = ExecutorFactory.newFixedThreadPool("wrkr", this.threads);
+		long skippedCount = 0;
+		final long startTime = System.currentTimeMillis();
+		try {
+			final Queue<File> dirs = new LinkedList<File>();
+			dirs.add(this.dir);
+			// Symlinked directories are followed, but only walked once so a link to a parent can not loop.
+			final Set<String> walked = new HashSet<String>();
+			walked.add(FileHelper.canonicalPath(this.dir));
+			walk: while (!dirs.isEmpty()) {
+				final File[] children = dirs.poll().listFiles();
+				if (children == null) continue;
+				Arrays.sort(children);
+				for (final File child : children) {
+					if (child.isDirectory()) {
+						final String canonical = FileHelper.canonicalPath(child);
+						if (walked.add(canonical)) {
+							dirs.add(child);
+						}
+						else {
+							LOG.warn("Skipping {}, already walked as {}.", child.getAbsolutePath(), canonical);
+						}
+						continue;
+					}
+					if (!child.isFile()) continue;
+
+					final String key = this.prefix + FileHelper.getRelativePath(this.dir, child);
+					final long length = child.length();
+					if (existing != null) {
+						final Long existingSize = existing.get(key);
+						if (existingSize != null && existingSize.longValue() == length) {
+							skippedCount += 1;
+							continue;
+						}
+					}
+
+					LOG.info("{} --> {}", child.getAbsolutePath(), key);
+					final UploadMulti u = new UploadMulti(this.s3Client, child, this.bucket, key, partExecutor, this.chunkSize, this.metadata);
+					u.setSinglePutThreshold(this.singlePutThreshold);
+					u.setResumable(this.resumable);
+					u.setConcurrencyLimiter(this.limiter);
+					if (!runner.submit(child.getAbsolutePath(), length, uploader(u))) break walk;
+				}
+			}
+			runner.awaitAll();
+		}
+		finally {
+			runner.shutdownNow();
+			partExecutor.shutdownNow();
+		}
+
+		final long millis = Math.max(1, System.currentTimeMillis() - startTime);
+		LOG.info("uploaded={} skipped={} bytes={} duration={}s files/s={} bytes/s={}",
+				runner.getTransferedCount(), skippedCount, runner.getTransferedBytes(), TimeUnit.MILLISECONDS.toSeconds(millis),
+				runner.getTransferedCount() * 1000L / millis, runner.getTransferedBytes() * 1000L / millis);
+
+		final Exception e = runner.getFailure();
+		if (e != null) throw new IOException("Upload failed: " + e.getMessage(), e);
+	}
+
+	/**
+	 * One listing of the prefix is far cheaper than a HEAD per file.
+	 */
+	private Map<String, Long> listExisting() throws Exception {
+		final Map<String, Long> existing = new HashMap<String, Long>();
+		final KeyListing listing = S3Helper.listKeys(this.s3Client, this.bucket, this.prefix, this.listThreads, false);
+		try {
+			while (listing.hasNext()) {
+				final S3ObjectSummary o = listing.next();
+				existing.put(o.getKey(), o.getSize());
+			}
+		}
+		finally {
+			listing.stop();
+		}
+		LOG.info("existing={}", existing.size());
+		return existing;
+	}
+
+	private static Callable<Void> uploader(final UploadMulti upload) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				upload.run();
+				return null;
+			}
+		};
+	}
+
+}
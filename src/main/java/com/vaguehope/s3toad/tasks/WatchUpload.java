@@ -18,8 +18,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.vaguehope.s3toad.util.AimdLimiter;
+import com.vaguehope.s3toad.util.ByteBudget;
 import com.vaguehope.s3toad.util.ExecutorFactory;
+import com.vaguehope.s3toad.util.FileHelper;
 import com.vaguehope.s3toad.util.ThreadHelper;
+import com.vaguehope.s3toad.util.TransferIndex;
 
 public class WatchUpload {
 
@@ -31,9 +35,17 @@ public class WatchUpload {
 	private final ThreadPoolExecutor controlExecutor;
 	private final ThreadPoolExecutor workerExecutor;
 	private final long chunkSize;
+	private final long singlePutThreshold;
+	private final ByteBudget byteBudget;
 	private final boolean deleteAfter;
-
-	public WatchUpload(AmazonS3 s3Client, File file, String bucket, int workerThreads, int controlThreads, long chunkSize, boolean deleteAfter) {
+	private boolean resumable = false;
+	private AimdLimiter limiter;
+	private TransferIndex index;
+
+	/**
+	 * @param byteBudget max bytes of parts queued or in flight across all uploads, or 0 for no limit.
+	 */
+	public WatchUpload(AmazonS3 s3Client, File file, String bucket, int workerThreads, int controlThreads, long chunkSize, long singlePutThreshold, long byteBudget, boolean deleteAfter) {
 		this.s3Client = s3Client;
 		this.dir = file;
 		this.bucket = bucket;
@@ -41,11 +53,40 @@ public class WatchUpload {
 		this.controlExecutor = ExecutorFactory.newFixedThreadPool("ctrl", controlThreads);
 		this.workerExecutor = ExecutorFactory.newFixedThreadPool("wrkr", workerThreads);
 		this.chunkSize = chunkSize;
+		this.singlePutThreshold = singlePutThreshold;
+		this.byteBudget = byteBudget > 0 ? new ByteBudget(byteBudget) : null;
+	}
+
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * One adaptive limit on parts in flight, shared by all uploads.
+	 */
+	public void setConcurrencyLimiter(AimdLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Record each completed upload in a local TransferIndex, and on start skip existing files
+	 * it says were uploaded at the same size and mtime.
+	 */
+	public void setIndexed(boolean indexed) throws IOException {
+		this.index = indexed ? TransferIndex.open("watch", this.bucket, this.dir.getAbsolutePath()) : null;
 	}
 
 	public void dispose() {
 		this.controlExecutor.shutdown();
 		this.workerExecutor.shutdown();
+		if (this.index != null) {
+			try {
+				this.index.close();
+			}
+			catch (IOException e) {
+				LOG.warn("Failed to close index.", e);
+			}
+		}
 	}
 
 	public void run() throws Exception {
@@ -61,13 +102,15 @@ public class WatchUpload {
 		scanExisting();
 
 		while (true) {
-			LOG.info("controlExecutorDepth={} workerExecutorDepth={}", this.controlExecutor.getQueue().size(), this.workerExecutor.getQueue().size());
+			LOG.info("controlExecutorDepth={} workerExecutorDepth={} budgetUsed={}", this.controlExecutor.getQueue().size(), this.workerExecutor.getQueue().size(),
+					this.byteBudget != null ? this.byteBudget.getUsedBytes() : "-");
 			ThreadHelper.sleepQuietly(10000L);
 		}
 	}
 
 	private void scanExisting() throws IOException {
 		int count = 0;
+		int indexed = 0;
 		final Queue<File> dirs = new LinkedList<File>();
 		dirs.add(this.dir);
 		while (!dirs.isEmpty()) {
@@ -80,13 +123,25 @@ public class WatchUpload {
 						dirs.add(child);
 					}
 					else if (child.isFile()) {
-						fileCreated(child.getCanonicalFile());
+						final File file = child.getCanonicalFile();
+						if (isIndexed(file)) {
+							indexed += 1;
+						}
+						else {
+							fileCreated(file);
+						}
 						count += 1;
 					}
 				}
 			}
 		}
-		LOG.info("existing={}", count);
+		LOG.info("existing={} indexed={}", count, indexed);
+	}
+
+	private boolean isIndexed(File file) {
+		if (this.index == null) return false;
+		final TransferIndex.Entry e = this.index.get(FileHelper.getRelativePath(this.dir, file));
+		return e != null && e.getSize() == file.length() && e.getMtime() == file.lastModified();
 	}
 
 	protected void fileCreated(File file) {
@@ -106,31 +161,36 @@ public class WatchUpload {
 				return;
 			}
 
-			final String key = getRelativePath(this.dir, file);
+			final String key = FileHelper.getRelativePath(this.dir, file);
 			LOG.info("created={} => key={}", file.getAbsolutePath(), key);
 
 			UploadMulti u = new UploadMulti(this.s3Client, file, this.bucket, key, this.workerExecutor, this.chunkSize);
-			this.controlExecutor.submit(new UploadCaller(u, this.deleteAfter, this.controlExecutor));
+			u.setSinglePutThreshold(this.singlePutThreshold);
+			u.setByteBudget(this.byteBudget);
+			u.setResumable(this.resumable);
+			u.setConcurrencyLimiter(this.limiter);
+			this.controlExecutor.submit(new UploadCaller(u, key, this.index, this.deleteAfter, this.controlExecutor));
 		}
 		catch (Exception e) {
 			LOG.error("Failed to sechedule upload for created file: {}", file.getAbsolutePath(), e);
 		}
 	}
 
-	private static String getRelativePath(File dir, File file) {
-		String base = dir.getAbsolutePath();
-		String path = file.getAbsolutePath();
-		return path.substring(base.length() + (base.endsWith("/") ? 0 : 1));
-	}
-
 	private static class UploadCaller implements Callable<Void> {
 
 		private final UploadMulti upload;
+		private final String key;
+		private final TransferIndex index;
 		private final boolean deleteAfter;
 		private final ExecutorService controlExecutor;
 
-		public UploadCaller(UploadMulti upload, boolean deleteAfter, ExecutorService controlExecutor) {
+		/**
+		 * @param index may be null.
+		 */
+		public UploadCaller(UploadMulti upload, String key, TransferIndex index, boolean deleteAfter, ExecutorService controlExecutor) {
 			this.upload = upload;
+			this.key = key;
+			this.index = index;
 			this.deleteAfter = deleteAfter;
 			this.controlExecutor = controlExecutor;
 		}
@@ -138,9 +198,15 @@ public class WatchUpload {
 		@Override
 		public Void call() {
 			try {
+				// Taken before the upload, so a change during it is not recorded as uploaded.
+				final File file = this.upload.getFile();
+				final long length = file.length();
+				final long lastModified = file.lastModified();
 				this.upload.run();
+				if (this.index != null && this.upload.getETag() != null) {
+					this.index.put(this.key, new TransferIndex.Entry(length, lastModified, this.upload.getETag()));
+				}
 				if (this.deleteAfter) {
-					File file = this.upload.getFile();
 					if (file.delete()) {
 						LOG.info("deleted={}", file.getAbsolutePath());
 					}
@@ -0,0 +1,116 @@
+package com.vaguehope.s3toad.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive cap on concurrent transfers, additive-increase / multiplicative-decrease.
+ * <p>
+ * Each transfer that completes without its per-byte latency rising well above the best seen
+ * grows the limit by about one per round of transfers.
+ * Throttling halves the limit, other failures and latency spikes shrink it more gently.
+ * The limit stays within [min, max], and every change in whole transfers is logged.
+ */
+public class AimdLimiter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AimdLimiter.class);
+
+	private static final double THROTTLE_DECREASE = 0.5d;
+	private static final double CONGESTION_DECREASE = 0.8d;
+	/**
+	 * Per-byte latency above this multiple of the baseline counts as congestion.
+	 */
+	private static final double CONGESTION_LATENCY_RATIO = 2d;
+	/**
+	 * Baseline drifts up slowly so one lucky fast transfer does not pin it forever.
+	 */
+	private static final double BASELINE_DRIFT = 0.02d;
+	/**
+	 * Smaller transfers are dominated by request overhead, so say little about the link.
+	 */
+	private static final long MIN_SAMPLE_BYTES = 1024L * 1024L;
+
+	private final int min;
+	private final int max;
+	private double limit;
+	private int inFlight = 0;
+	private double baselineMillisPerByte = -1;
+	private int lastLoggedLimit;
+
+	public AimdLimiter (final int min, final int max) {
+		if (min < 1) throw new IllegalArgumentException("min must be positive: " + min);
+		if (max < min) throw new IllegalArgumentException("max must be at least min: " + max + " < " + min);
+		this.min = min;
+		this.max = max;
+		this.limit = min;
+		this.lastLoggedLimit = min;
+		LOG.info("concurrency={} min={} max={}", min, min, max);
+	}
+
+	public synchronized int getLimit () {
+		return (int) this.limit;
+	}
+
+	public synchronized void acquire () throws InterruptedException {
+		while (this.inFlight >= (int) this.limit) {
+			wait();
+		}
+		this.inFlight += 1;
+	}
+
+	public synchronized void succeeded (final long bytes, final long millis) {
+		release();
+		if (bytes >= MIN_SAMPLE_BYTES) {
+			final double millisPerByte = Math.max(1, millis) / (double) bytes;
+			if (this.baselineMillisPerByte < 0 || millisPerByte < this.baselineMillisPerByte) {
+				this.baselineMillisPerByte = millisPerByte;
+			}
+			else {
+				this.baselineMillisPerByte += (millisPerByte - this.baselineMillisPerByte) * BASELINE_DRIFT;
+			}
+
+			if (millisPerByte > this.baselineMillisPerByte * CONGESTION_LATENCY_RATIO) {
+				decrease(CONGESTION_DECREASE, "latency");
+				return;
+			}
+		}
+		this.limit = Math.min(this.max, this.limit + 1d / this.limit);
+		changed("increase");
+	}
+
+	/**
+	 * Only failures that would be retried say anything about load, others just release.
+	 */
+	public synchronized void failed (final Exception e) {
+		release();
+		if (RetryPolicy.isThrottle(e)) {
+			decrease(THROTTLE_DECREASE, "throttled");
+		}
+		else if (RetryPolicy.isRetryable(e)) {
+			decrease(CONGESTION_DECREASE, "error");
+		}
+	}
+
+	/**
+	 * For transfers abandoned without a result.
+	 */
+	public synchronized void release () {
+		this.inFlight -= 1;
+		notifyAll();
+	}
+
+	private void decrease (final double factor, final String reason) {
+		this.limit = Math.max(this.min, this.limit * factor);
+		changed(reason);
+	}
+
+	private void changed (final String reason) {
+		final int l = (int) this.limit;
+		if (l != this.lastLoggedLimit) {
+			LOG.info("concurrency={} reason={} inFlight={}", l, reason, this.inFlight);
+			this.lastLoggedLimit = l;
+		}
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.vaguehope.s3toad.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Fixed number of reusable byte buffers.
+ * Buffers are allocated lazily, so a short stream does not pay for the whole pool.
+ * take() blocks once all buffers are in use.
+ */
+public class BufferPool {
+
+	private final BlockingQueue<byte[]> free = new LinkedBlockingQueue<byte[]>();
+	private final int bufferSize;
+	private final int maxBuffers;
+	private int allocated = 0;
+
+	public BufferPool (final int bufferSize, final int maxBuffers) {
+		if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		if (maxBuffers < 1) throw new IllegalArgumentException("maxBuffers must be positive: " + maxBuffers);
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	public int getBufferSize () {
+		return this.bufferSize;
+	}
+
+	public byte[] take () throws InterruptedException {
+		final byte[] b = this.free.poll();
+		if (b != null) return b;
+		synchronized (this) {
+			if (this.allocated < this.maxBuffers) {
+				this.allocated += 1;
+				return new byte[this.bufferSize];
+			}
+		}
+		return this.free.take();
+	}
+
+	public void release (final byte[] b) {
+		if (b == null) return;
+		if (b.length != this.bufferSize) throw new IllegalArgumentException("Buffer not from this pool.");
+		this.free.add(b);
+	}
+
+}
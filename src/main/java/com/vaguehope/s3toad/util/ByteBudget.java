@@ -0,0 +1,39 @@
+package com.vaguehope.s3toad.util;
+
+/**
+ * Caps the total bytes reserved across many users, blocking those that would exceed it.
+ * A single reservation larger than the whole budget is allowed when nothing else is held,
+ * otherwise it could never proceed.
+ */
+public class ByteBudget {
+
+	private final long maxBytes;
+	private long usedBytes = 0;
+
+	public ByteBudget (final long maxBytes) {
+		if (maxBytes < 1) throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		this.maxBytes = maxBytes;
+	}
+
+	public long getMaxBytes () {
+		return this.maxBytes;
+	}
+
+	public synchronized long getUsedBytes () {
+		return this.usedBytes;
+	}
+
+	public synchronized void acquire (final long bytes) throws InterruptedException {
+		while (this.usedBytes > 0 && this.usedBytes + bytes > this.maxBytes) {
+			wait();
+		}
+		this.usedBytes += bytes;
+	}
+
+	public synchronized void release (final long bytes) {
+		this.usedBytes -= bytes;
+		if (this.usedBytes < 0) throw new IllegalStateException("Released more than was acquired.");
+		notifyAll();
+	}
+
+}
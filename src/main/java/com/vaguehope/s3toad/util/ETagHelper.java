@@ -0,0 +1,81 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculate the ETag S3 would give a local file, to tell if it differs from an object without downloading it.
+ * Only meaningful for objects not encrypted with SSE-C or SSE-KMS, whose ETags are not MD5s.
+ */
+public final class ETagHelper {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private ETagHelper () {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Plain MD5 for objects sent with a single PUT,
+	 * otherwise the MD5 of the part MD5s followed by -[part count], assuming every part but the last is partSize.
+	 */
+	public static String calculate (final File file, final boolean multipart, final long partSize) throws IOException {
+		final MessageDigest whole = md5();
+		final MessageDigest part = md5();
+		int parts = 0;
+		long partRemaining = partSize;
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		final InputStream is = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = is.read(buffer, 0, multipart ? (int) Math.min(buffer.length, partRemaining) : buffer.length)) >= 0) {
+				if (!multipart) {
+					whole.update(buffer, 0, n);
+					continue;
+				}
+				part.update(buffer, 0, n);
+				partRemaining -= n;
+				if (partRemaining <= 0) {
+					whole.update(part.digest());
+					parts += 1;
+					partRemaining = partSize;
+				}
+			}
+		}
+		finally {
+			is.close();
+		}
+		if (!multipart) return hex(whole.digest());
+		if (partRemaining < partSize) {
+			whole.update(part.digest());
+			parts += 1;
+		}
+		return hex(whole.digest()) + "-" + parts;
+	}
+
+	public static boolean isMultipart (final String etag) {
+		return etag.indexOf('-') >= 0;
+	}
+
+	private static MessageDigest md5 () {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex (final byte[] bytes) {
+		final StringBuilder s = new StringBuilder(bytes.length * 2);
+		for (final byte b : bytes) {
+			s.append(String.format("%02x", b));
+		}
+		return s.toString();
+	}
+
+}
@@ -1,5 +1,6 @@
 package com.vaguehope.s3toad.util;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -17,4 +18,12 @@ public final class ExecutorFactory {
 				new NamedThreadFactory(name));
 	}
 
+	/**
+	 * Most threads the executor will run at once, or 1 if that is not known.
+	 */
+	public static int threadCount(ExecutorService executor) {
+		if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+		return 1;
+	}
+
 }
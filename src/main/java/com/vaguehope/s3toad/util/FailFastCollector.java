@@ -0,0 +1,82 @@
+package com.vaguehope.s3toad.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Collects results of related tasks in the order they complete,
+ * so the first failure is seen as soon as it happens rather than after every earlier task.
+ * cancelAll() then stops the rest, including removing queued ones from a shared pool.
+ */
+public class FailFastCollector<T> {
+
+	private final ExecutorService executor;
+	private final List<Future<T>> futures = new ArrayList<Future<T>>();
+	private final BlockingQueue<Future<T>> completed = new LinkedBlockingQueue<Future<T>>();
+	private final List<T> results = new ArrayList<T>();
+
+	public FailFastCollector (final ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @param onDone if not null, run once the task completes, fails or is cancelled.
+	 */
+	public Future<T> submit (final Callable<T> callable, final Runnable onDone) {
+		final FutureTask<T> task = new FutureTask<T>(callable) {
+			@Override
+			protected void done () {
+				try {
+					if (onDone != null) onDone.run();
+				}
+				finally {
+					FailFastCollector.this.completed.add(this);
+				}
+			}
+		};
+		this.executor.execute(task);
+		this.futures.add(task);
+		return task;
+	}
+
+	public int size () {
+		return this.futures.size();
+	}
+
+	/**
+	 * Without blocking, throws the failure of any task that has already failed.
+	 */
+	public void checkFailures () throws InterruptedException, ExecutionException {
+		Future<T> f;
+		while ((f = this.completed.poll()) != null) {
+			this.results.add(f.get());
+		}
+	}
+
+	/**
+	 * Waits for all submitted tasks, throwing as soon as any fails.
+	 * Results are in completion order.
+	 */
+	public List<T> awaitAll () throws InterruptedException, ExecutionException {
+		while (this.results.size() < this.futures.size()) {
+			this.results.add(this.completed.take().get());
+		}
+		return this.results;
+	}
+
+	public void cancelAll () {
+		for (final Future<T> f : this.futures) {
+			f.cancel(true);
+		}
+		if (this.executor instanceof ThreadPoolExecutor) ((ThreadPoolExecutor) this.executor).purge();
+	}
+
+}
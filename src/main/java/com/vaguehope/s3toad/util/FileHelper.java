@@ -0,0 +1,46 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.File;
+import java.io.IOException;
+
+public final class FileHelper {
+
+	private FileHelper () {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Path of file below dir, as used for its key.
+	 */
+	public static String getRelativePath (final File dir, final File file) {
+		final String base = dir.getAbsolutePath();
+		final String path = file.getAbsolutePath();
+		return path.substring(base.length() + (base.endsWith("/") ? 0 : 1));
+	}
+
+	/**
+	 * Moves from over to, replacing it if it exists.
+	 * Windows will not rename over an existing file, so there it falls back to deleting to first,
+	 * which is not atomic: a crash between the two leaves only from.
+	 */
+	public static void rename (final File from, final File to) throws IOException {
+		if (from.renameTo(to)) return;
+		if (!to.delete() || !from.renameTo(to)) {
+			throw new IOException("Failed to rename " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Path with symlinks resolved, for spotting a directory already walked,
+	 * or the absolute path if it can not be resolved.
+	 */
+	public static String canonicalPath (final File file) {
+		try {
+			return file.getCanonicalPath();
+		}
+		catch (final IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+}
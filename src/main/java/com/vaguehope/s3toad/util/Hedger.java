@@ -0,0 +1,286 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Speculatively re-issues stragglers within one transfer.
+ * Once enough requests have completed, one still running well past their p95 duration
+ * gets a duplicate, and whichever finishes first wins.
+ * Only suits attempts that can really be stopped when they lose, e.g. a ranged GET whose read loop checks abandon(),
+ * as otherwise the caller still waits for the slow primary.
+ * <p>
+ * The primary runs on the calling thread, so a worker never moves on while its request is still running.
+ * Duplicates run on a pool of at most maxDuplicates threads with no queue,
+ * a straggler that finds the pool full is simply not hedged.
+ * So at most maxDuplicates extra requests are ever in flight, even counting losers still finishing.
+ * <p>
+ * The duplicate must be safe to run alongside the original, e.g. an identical part or range.
+ * The losing attempt is interrupted, unless it is Abandonable in which case it is asked to stop.
+ * If the duplicate wins, the call returns once the primary has stopped.
+ * <p>
+ * Call shutdown() when the transfer is done.
+ */
+public class Hedger {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Hedger.class);
+
+	private static final int MIN_SAMPLES = 5;
+	private static final double PERCENTILE = 0.95d;
+	private static final double STRAGGLER_FACTOR = 1.5d;
+	private static final long CHECK_INTERVAL_MILLES = 1000L;
+	/**
+	 * Only the most recent durations count, which also keeps each update cheap on a long transfer.
+	 */
+	private static final int WINDOW = 256;
+
+	/**
+	 * For attempts that must not be interrupted, e.g. because they write to an interruptible channel.
+	 */
+	public interface Abandonable {
+		void abandon ();
+	}
+
+	private final ThreadPoolExecutor duplicates;
+	private final ScheduledExecutorService checker;
+	private final long[] recent = new long[WINDOW];
+	private final List<Long> sorted = new ArrayList<Long>(WINDOW);
+	private long recorded = 0;
+	private long thresholdMillis = -1;
+
+	/**
+	 * @param maxDuplicates usually the thread count of the caller's pool.
+	 */
+	public Hedger (final int maxDuplicates) {
+		this.duplicates = new ThreadPoolExecutor(0, Math.max(1, maxDuplicates),
+				60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new NamedThreadFactory("hdg"));
+		this.checker = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("hdgc"));
+	}
+
+	public void shutdown () {
+		this.checker.shutdownNow();
+		this.duplicates.shutdownNow();
+	}
+
+	public <T> Callable<T> hedged (final String what, final Callable<T> primary, final Callable<T> duplicate) {
+		return new Callable<T>() {
+			@Override
+			public T call () throws Exception {
+				return Hedger.this.call(what, primary, duplicate);
+			}
+		};
+	}
+
+	public <T> T call (final String what, final Callable<T> primary, final Callable<T> duplicate) throws Exception {
+		final Race<T> race = new Race<T>(Thread.currentThread(), primary);
+		final long startTime = System.currentTimeMillis();
+		final ScheduledFuture<?> check = this.checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run () {
+				maybeHedge(what, race, duplicate, startTime);
+			}
+		}, CHECK_INTERVAL_MILLES, CHECK_INTERVAL_MILLES, TimeUnit.MILLISECONDS);
+
+		T result = null;
+		Exception primaryFailure = null;
+		try {
+			result = timed(primary).call();
+		}
+		catch (Exception e) {
+			primaryFailure = e;
+		}
+		finally {
+			check.cancel(false);
+		}
+
+		final Future<T> dup = race.primaryDone();
+		if (race.isDuplicateWon()) return race.getDuplicateResult();
+		if (dup == null) {
+			if (primaryFailure != null) throw primaryFailure;
+			return result;
+		}
+
+		if (primaryFailure == null) {
+			stop(duplicate, dup);
+			return result;
+		}
+		if (isInterrupt(primaryFailure)) {
+			stop(duplicate, dup);
+			throw primaryFailure;
+		}
+		LOG.info("{}: one attempt failed, waiting for the other: {}", what, primaryFailure.toString());
+		try {
+			return dup.get();
+		}
+		catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private <T> void maybeHedge (final String what, final Race<T> race, final Callable<T> duplicate, final long startTime) {
+		if (race.isHedged()) return;
+		final long threshold = getThresholdMillis();
+		final long elapsed = System.currentTimeMillis() - startTime;
+		if (threshold < 0 || elapsed <= threshold) return;
+
+		final Callable<T> timedDuplicate = timed(duplicate);
+		try {
+			final Future<T> f = this.duplicates.submit(new Callable<T>() {
+				@Override
+				public T call () throws Exception {
+					final T r = timedDuplicate.call();
+					race.duplicateSucceeded(r);
+					return r;
+				}
+			});
+			if (!race.hedged(f)) {
+				stop(duplicate, f);
+				return;
+			}
+			LOG.info("{}: running {}ms, past {}ms, hedging.", what, elapsed, threshold);
+		}
+		catch (RejectedExecutionException e) {
+			// Pool full or shut down, try again next check.
+		}
+	}
+
+	private static <T> void stop (final Callable<T> attempt, final Future<T> f) {
+		if (f.isDone()) return;
+		if (attempt instanceof Abandonable) {
+			((Abandonable) attempt).abandon();
+			f.cancel(false);
+		}
+		else {
+			f.cancel(true);
+		}
+	}
+
+	private <T> Callable<T> timed (final Callable<T> callable) {
+		return new Callable<T>() {
+			@Override
+			public T call () throws Exception {
+				final long startTime = System.currentTimeMillis();
+				final T result = callable.call();
+				recordDuration(System.currentTimeMillis() - startTime);
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Keeps the window sorted by removing the oldest and inserting the newest, O(WINDOW) per call.
+	 */
+	private synchronized void recordDuration (final long millis) {
+		final int slot = (int) (this.recorded % WINDOW);
+		if (this.recorded >= WINDOW) {
+			this.sorted.remove(Collections.binarySearch(this.sorted, this.recent[slot]));
+		}
+		this.recent[slot] = millis;
+		this.recorded += 1;
+		final int i = Collections.binarySearch(this.sorted, millis);
+		this.sorted.add(i < 0 ? -i - 1 : i, millis);
+
+		if (this.sorted.size() < MIN_SAMPLES) return;
+		final long p95 = this.sorted.get((int) Math.min(this.sorted.size() - 1, Math.ceil(this.sorted.size() * PERCENTILE) - 1));
+		this.thresholdMillis = (long) (p95 * STRAGGLER_FACTOR);
+	}
+
+	/**
+	 * -1 until there are enough samples.
+	 */
+	public synchronized long getThresholdMillis () {
+		return this.thresholdMillis;
+	}
+
+	private static boolean isInterrupt (final Exception e) {
+		return e instanceof InterruptedException || e instanceof InterruptedIOException
+				|| e.getCause() instanceof InterruptedException || e.getCause() instanceof InterruptedIOException;
+	}
+
+	private static Exception unwrap (final ExecutionException e) {
+		final Throwable c = e.getCause();
+		if (c instanceof Exception) return (Exception) c;
+		if (c instanceof Error) throw (Error) c;
+		return e;
+	}
+
+	/**
+	 * State shared between the calling thread, the checker and the duplicate.
+	 * Locked so the calling thread is only ever interrupted while it is still running the primary.
+	 */
+	private static class Race<T> {
+
+		private final Thread caller;
+		private final Callable<T> primary;
+		private Future<T> duplicate;
+		private boolean primaryDone = false;
+		private boolean duplicateWon = false;
+		private T duplicateResult;
+
+		public Race (final Thread caller, final Callable<T> primary) {
+			this.caller = caller;
+			this.primary = primary;
+		}
+
+		public synchronized boolean isHedged () {
+			return this.duplicate != null || this.primaryDone;
+		}
+
+		/**
+		 * False if the primary finished first, so the duplicate is not wanted.
+		 */
+		public synchronized boolean hedged (final Future<T> f) {
+			if (this.primaryDone) return false;
+			this.duplicate = f;
+			return true;
+		}
+
+		public synchronized void duplicateSucceeded (final T result) {
+			if (this.primaryDone) return;
+			this.duplicateWon = true;
+			this.duplicateResult = result;
+			if (this.primary instanceof Abandonable) {
+				((Abandonable) this.primary).abandon();
+			}
+			else {
+				this.caller.interrupt();
+			}
+		}
+
+		/**
+		 * Clears any interrupt this race caused, and returns the duplicate if one was started.
+		 */
+		public synchronized Future<T> primaryDone () {
+			this.primaryDone = true;
+			if (this.duplicateWon && !(this.primary instanceof Abandonable)) Thread.interrupted();
+			return this.duplicate;
+		}
+
+		public synchronized boolean isDuplicateWon () {
+			return this.duplicateWon;
+		}
+
+		public synchronized T getDuplicateResult () {
+			return this.duplicateResult;
+		}
+
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+public final class JsonHelper {
+
+	private JsonHelper () {
+		throw new AssertionError();
+	}
+
+	/**
+	 * As a quoted and escaped JSON string, or null.
+	 */
+	public static void writeString (final Writer w, final String s) throws IOException {
+		if (s == null) {
+			w.write("null");
+			return;
+		}
+		w.write('"');
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					w.write("\\\"");
+					break;
+				case '\\':
+					w.write("\\\\");
+					break;
+				case '\n':
+					w.write("\\n");
+					break;
+				case '\r':
+					w.write("\\r");
+					break;
+				case '\t':
+					w.write("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						w.write(String.format("\\u%04x", (int) c));
+					}
+					else {
+						w.write(c);
+					}
+			}
+		}
+		w.write('"');
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams keys from a file, or stdin for -, one per line.  Blank lines are skipped.
+ */
+public class KeyFileReader implements Iterator<String> {
+
+	private final String path;
+	private final BufferedReader reader;
+	private String next;
+
+	public KeyFileReader (final String path) throws IOException {
+		this.path = path;
+		final InputStream is = "-".equals(path) ? System.in : new FileInputStream(path);
+		this.reader = new BufferedReader(new InputStreamReader(is, "UTF-8"), 64 * 1024);
+	}
+
+	@Override
+	public boolean hasNext () {
+		while (this.next == null) {
+			final String line;
+			try {
+				line = this.reader.readLine();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Failed to read keys from " + this.path + ": " + e.getMessage(), e);
+			}
+			if (line == null) return false;
+			if (line.length() > 0) this.next = line;
+		}
+		return true;
+	}
+
+	@Override
+	public String next () {
+		if (!hasNext()) throw new NoSuchElementException();
+		final String k = this.next;
+		this.next = null;
+		return k;
+	}
+
+	@Override
+	public void remove () {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close () throws IOException {
+		this.reader.close();
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.vaguehope.s3toad.util;
+
+import java.util.Iterator;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Objects under a prefix, listed in the background while the caller iterates.
+ * hasNext() blocks until more are listed, and rethrows any listing failure.
+ */
+public interface KeyListing extends Iterator<S3ObjectSummary> {
+
+	void start ();
+
+	/**
+	 * Stop listing early, e.g. when the caller has failed.
+	 */
+	void stop ();
+
+}
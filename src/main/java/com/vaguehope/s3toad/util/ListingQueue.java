@@ -0,0 +1,128 @@
+package com.vaguehope.s3toad.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Pages through the listing on its own thread, fetching the next pages while the caller works through this one.
+ * At most a few pages are buffered, so work starts with the first page and heap use does not grow with the prefix.
+ */
+public class ListingQueue implements Runnable, KeyListing {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ListingQueue.class);
+
+	/**
+	 * Pages listed ahead of the caller, each up to 1000 objects.
+	 */
+	private static final int PAGE_BUFFER = 4;
+	private static final List<S3ObjectSummary> END = new ArrayList<S3ObjectSummary>(0);
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final String prefix;
+	private final BlockingQueue<List<S3ObjectSummary>> pages = new ArrayBlockingQueue<List<S3ObjectSummary>>(PAGE_BUFFER);
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+	private volatile boolean stopped = false;
+	private List<S3ObjectSummary> page = null;
+	private int pageIndex = 0;
+	private long count = 0;
+
+	public ListingQueue(final AmazonS3 s3Client, final String bucket, final String prefix) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void start() {
+		new NamedThreadFactory("lst").newThread(this).start();
+	}
+
+	@Override
+	public void stop() {
+		this.stopped = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			ObjectListing objectListing = S3Helper.listObjects(this.s3Client, new ListObjectsRequest()
+					.withBucketName(this.bucket)
+					.withPrefix(this.prefix));
+			while (!this.stopped) {
+				if (!objectListing.getObjectSummaries().isEmpty() && !put(objectListing.getObjectSummaries())) return;
+				if (objectListing.getNextMarker() == null) break;
+				objectListing = S3Helper.listObjects(this.s3Client, new ListObjectsRequest()
+						.withBucketName(this.bucket)
+						.withPrefix(this.prefix)
+						.withMarker(objectListing.getNextMarker()));
+			}
+		}
+		catch (RuntimeException e) {
+			this.failure.set(e);
+		}
+		catch (Exception e) {
+			this.failure.set(new IllegalStateException("Listing failed: " + e.getMessage(), e));
+		}
+		finally {
+			try {
+				put(END);
+			}
+			catch (InterruptedException e) { /* Consumer has gone. */}
+		}
+	}
+
+	private boolean put(final List<S3ObjectSummary> p) throws InterruptedException {
+		while (!this.stopped) {
+			if (this.pages.offer(p, 1, TimeUnit.SECONDS)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (this.page == null || this.pageIndex >= this.page.size()) {
+			if (this.page == END) return false;
+			try {
+				this.page = this.pages.take();
+				this.pageIndex = 0;
+			}
+			catch (InterruptedException e) {
+				throw new IllegalStateException("Interrupted waiting for listing.", e);
+			}
+			if (this.page == END) {
+				final RuntimeException e = this.failure.get();
+				if (e != null) throw e;
+				LOG.info("itemCount={}", this.count);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public S3ObjectSummary next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		this.count += 1;
+		return this.page.get(this.pageIndex++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Buffered writer of object listings, one record per object, for output of millions of keys.
+ * Numbers are written without intermediate Strings and nothing is flushed until the buffer fills or flush() is called.
+ * flush() rather than close() when writing to stdout, so later messages still get out.
+ */
+public abstract class ListingWriter {
+
+	public static enum Format {
+		/**
+		 * [mtime millis]\t[size]\t[key]\t[etag]
+		 */
+		TSV,
+		/**
+		 * {"key":"...","size":n,"mtime":n,"etag":"..."}
+		 */
+		JSON,
+		/**
+		 * Big endian, per object: [int key length][key UTF-8][long size][long mtime millis][short etag length][etag ASCII].
+		 */
+		BINARY;
+	}
+
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public static ListingWriter create (final Format format, final OutputStream os) {
+		switch (format) {
+			case TSV:
+				return new TsvWriter(os);
+			case JSON:
+				return new JsonWriter(os);
+			case BINARY:
+				return new BinaryWriter(os);
+			default:
+				throw new IllegalArgumentException("Unknown format: " + format);
+		}
+	}
+
+	public abstract void write (S3ObjectSummary o) throws IOException;
+
+	public abstract void flush () throws IOException;
+
+	public abstract void close () throws IOException;
+
+	private abstract static class TextWriter extends ListingWriter {
+
+		protected final Writer w;
+		private final char[] digits = new char[20];
+
+		TextWriter (final OutputStream os) {
+			this.w = new BufferedWriter(new OutputStreamWriter(os, UTF8), BUFFER_SIZE);
+		}
+
+		protected void writeLong (final long l) throws IOException {
+			if (l < 0) {
+				// Only Long.MIN_VALUE can not be negated, and no size or time will be that.
+				this.w.write('-');
+				writeLong(-l);
+				return;
+			}
+			int i = this.digits.length;
+			long v = l;
+			do {
+				this.digits[--i] = (char) ('0' + (v % 10));
+				v /= 10;
+			}
+			while (v > 0);
+			this.w.write(this.digits, i, this.digits.length - i);
+		}
+
+		protected void writeString (final String s) throws IOException {
+			if (s != null) this.w.write(s);
+		}
+
+		@Override
+		public void flush () throws IOException {
+			this.w.flush();
+		}
+
+		@Override
+		public void close () throws IOException {
+			this.w.close();
+		}
+
+	}
+
+	private static class TsvWriter extends TextWriter {
+
+		TsvWriter (final OutputStream os) {
+			super(os);
+		}
+
+		@Override
+		public void write (final S3ObjectSummary o) throws IOException {
+			writeLong(o.getLastModified().getTime());
+			this.w.write('\t');
+			writeLong(o.getSize());
+			this.w.write('\t');
+			writeString(o.getKey());
+			this.w.write('\t');
+			writeString(o.getETag());
+			this.w.write('\n');
+		}
+
+	}
+
+	private static class JsonWriter extends TextWriter {
+
+		JsonWriter (final OutputStream os) {
+			super(os);
+		}
+
+		@Override
+		public void write (final S3ObjectSummary o) throws IOException {
+			this.w.write("{\"key\":");
+			JsonHelper.writeString(this.w, o.getKey());
+			this.w.write(",\"size\":");
+			writeLong(o.getSize());
+			this.w.write(",\"mtime\":");
+			writeLong(o.getLastModified().getTime());
+			this.w.write(",\"etag\":");
+			JsonHelper.writeString(this.w, o.getETag());
+			this.w.write("}\n");
+		}
+
+	}
+
+	private static class BinaryWriter extends ListingWriter {
+
+		private final DataOutputStream out;
+
+		BinaryWriter (final OutputStream os) {
+			this.out = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+		}
+
+		@Override
+		public void write (final S3ObjectSummary o) throws IOException {
+			final byte[] key = o.getKey().getBytes(UTF8);
+			this.out.writeInt(key.length);
+			this.out.write(key);
+			this.out.writeLong(o.getSize());
+			this.out.writeLong(o.getLastModified().getTime());
+			final String etag = o.getETag() != null ? o.getETag() : "";
+			this.out.writeShort(etag.length());
+			this.out.writeBytes(etag);
+		}
+
+		@Override
+		public void flush () throws IOException {
+			this.out.flush();
+		}
+
+		@Override
+		public void close () throws IOException {
+			this.out.close();
+		}
+
+	}
+
+}
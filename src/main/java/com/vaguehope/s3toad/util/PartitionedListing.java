@@ -0,0 +1,403 @@
+package com.vaguehope.s3toad.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Lists a prefix as many contiguous partitions at once.
+ * <p>
+ * Partitions are found by listing with a / delimiter, a few levels deep until there are enough of them.
+ * A level with more entries than one page holds is instead split into key ranges on the next character,
+ * rather than paging through it serially just to find its sub-prefixes.
+ * <p>
+ * Unsorted, objects come back in whatever order partitions produce them.
+ * Sorted, partitions are read back in key order, which gives the same order as a serial listing.
+ * Partitions ahead of the reader keep listing while they wait their turn: each may buffer a page of its own,
+ * and beyond that borrow from a buffer shared by all partitions, so listing stays parallel until it is
+ * SORTED_BUFFER_SIZE objects ahead of the reader.  The partition being read always has its own page free,
+ * so it can not be starved by those ahead of it.
+ */
+public class PartitionedListing implements KeyListing {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PartitionedListing.class);
+
+	private static final String DELIMITER = "/";
+	private static final int PARTITIONS_PER_THREAD = 4;
+	private static final int MAX_DISCOVERY_DEPTH = 3;
+	/**
+	 * Boundaries for splitting a flat prefix, suits decimal, hex and base64-ish names.
+	 * Anything else still lands in some range, just less evenly.
+	 */
+	private static final String RANGE_BOUNDARIES = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+	private static final int QUEUE_SIZE = 2000;
+	private static final int PARTITION_QUEUE_SIZE = 1000;
+	/**
+	 * Objects that partitions ahead of the reader may hold between them beyond their own page, roughly 50 MB.
+	 */
+	private static final int SORTED_BUFFER_SIZE = 100000;
+	private static final S3ObjectSummary END = new S3ObjectSummary();
+
+	private final AmazonS3 s3Client;
+	private final String bucket;
+	private final String prefix;
+	private final int threads;
+	private final boolean sorted;
+
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+	private volatile boolean stopped = false;
+	private ExecutorService executor;
+	private List<Partition> partitions;
+	private BlockingQueue<S3ObjectSummary> unsortedQueue;
+	private Semaphore sortedBuffer;
+	private RuntimeException thrown;
+	private int currentPartition = 0;
+	private S3ObjectSummary next;
+	private long count = 0;
+	private boolean finished = false;
+
+	public PartitionedListing(final AmazonS3 s3Client, final String bucket, final String prefix, final int threads, final boolean sorted) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.prefix = prefix != null ? prefix : "";
+		this.threads = threads;
+		this.sorted = sorted;
+	}
+
+	/**
+	 * Finds the partitions on the calling thread, which is a few requests, then starts listing them.
+	 */
+	@Override
+	public void start() {
+		try {
+			this.partitions = discover();
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Listing failed: " + e.getMessage(), e);
+		}
+		LOG.info("partitions={} threads={} sorted={}", this.partitions.size(), this.threads, this.sorted);
+
+		final AtomicInteger remaining = new AtomicInteger(this.partitions.size());
+		if (!this.sorted) this.unsortedQueue = new LinkedBlockingQueue<S3ObjectSummary>(QUEUE_SIZE);
+		if (this.sorted) this.sortedBuffer = new Semaphore(SORTED_BUFFER_SIZE);
+		// Partitions start in key order, so the one being read has always been started.
+		this.executor = ExecutorFactory.newFixedThreadPool("lst", this.threads);
+		for (final Partition p : this.partitions) {
+			// Sorted queues are bounded by permits rather than capacity, see Partition.reserve().
+			p.queue = this.sorted ? new LinkedBlockingQueue<S3ObjectSummary>() : this.unsortedQueue;
+			p.remaining = remaining;
+			this.executor.execute(p);
+		}
+		if (!this.sorted && this.partitions.isEmpty()) this.unsortedQueue.add(END);
+		this.executor.shutdown();
+	}
+
+	@Override
+	public void stop() {
+		this.stopped = true;
+		if (this.executor != null) this.executor.shutdownNow();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.thrown != null) throw this.thrown;
+		while (this.next == null) {
+			final BlockingQueue<S3ObjectSummary> queue;
+			Partition partition = null;
+			if (this.sorted) {
+				if (this.currentPartition >= this.partitions.size()) return finished();
+				partition = this.partitions.get(this.currentPartition);
+				queue = partition.queue;
+			}
+			else {
+				queue = this.unsortedQueue;
+			}
+
+			try {
+				this.next = queue.take();
+			}
+			catch (InterruptedException e) {
+				throw new IllegalStateException("Interrupted waiting for listing.", e);
+			}
+
+			if (this.next == END) {
+				this.next = null;
+				final RuntimeException e = this.failure.get();
+				if (e != null) {
+					// Keep failing, rather than carrying on as if the partition ended normally.
+					this.thrown = e;
+					throw e;
+				}
+				if (!this.sorted) {
+					// Leave END in place so further calls also see the end.
+					queue.add(END);
+					return finished();
+				}
+				this.currentPartition += 1;
+			}
+			else if (partition != null) {
+				partition.release();
+			}
+		}
+		return true;
+	}
+
+	private boolean finished() {
+		if (!this.finished) {
+			LOG.info("itemCount={}", this.count);
+			this.finished = true;
+		}
+		return false;
+	}
+
+	@Override
+	public S3ObjectSummary next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		final S3ObjectSummary o = this.next;
+		this.next = null;
+		this.count += 1;
+		return o;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private List<Partition> discover() throws Exception {
+		final int target = this.threads * PARTITIONS_PER_THREAD;
+		List<Partition> parts = Collections.singletonList(new Partition(this.prefix, null, null, null));
+		for (int depth = 0; depth < MAX_DISCOVERY_DEPTH; depth++) {
+			if (countListed(parts) >= target) break;
+			final List<Partition> expanded = new ArrayList<Partition>();
+			boolean changed = false;
+			for (final Partition p : parts) {
+				if (p.isWholePrefix()) {
+					expand(p.prefix, expanded);
+					changed = true;
+				}
+				else {
+					expanded.add(p);
+				}
+			}
+			parts = expanded;
+			if (!changed) break;
+		}
+		return parts;
+	}
+
+	private static int countListed(final List<Partition> parts) {
+		int n = 0;
+		for (final Partition p : parts) {
+			if (p.fixed == null) n += 1;
+		}
+		return n;
+	}
+
+	/**
+	 * One delimited page: objects at this level become fixed partitions and sub-prefixes whole prefix ones,
+	 * interleaved in key order.  If one page is not enough, split into ranges instead.
+	 */
+	private void expand(final String p, final List<Partition> into) throws Exception {
+		final ObjectListing page = S3Helper.listObjects(this.s3Client, new ListObjectsRequest()
+				.withBucketName(this.bucket)
+				.withPrefix(p)
+				.withDelimiter(DELIMITER));
+		if (page.isTruncated()) {
+			splitRanges(p, into);
+			return;
+		}
+
+		final List<S3ObjectSummary> objects = page.getObjectSummaries();
+		final List<String> subPrefixes = new ArrayList<String>(page.getCommonPrefixes());
+		Collections.sort(subPrefixes, S3Helper.KEY_ORDER);
+		int oi = 0;
+		int pi = 0;
+		List<S3ObjectSummary> run = null;
+		while (oi < objects.size() || pi < subPrefixes.size()) {
+			if (pi >= subPrefixes.size() || (oi < objects.size() && S3Helper.KEY_ORDER.compare(objects.get(oi).getKey(), subPrefixes.get(pi)) < 0)) {
+				if (run == null) run = new ArrayList<S3ObjectSummary>();
+				run.add(objects.get(oi++));
+			}
+			else {
+				if (run != null) {
+					into.add(new Partition(p, null, null, run));
+					run = null;
+				}
+				into.add(new Partition(subPrefixes.get(pi++), null, null, null));
+			}
+		}
+		if (run != null) into.add(new Partition(p, null, null, run));
+	}
+
+	private void splitRanges(final String p, final List<Partition> into) {
+		String lo = null;
+		for (int i = 0; i < RANGE_BOUNDARIES.length(); i++) {
+			final String hi = p + RANGE_BOUNDARIES.charAt(i);
+			into.add(new Partition(p, lo, hi, null));
+			lo = hi;
+		}
+		into.add(new Partition(p, lo, null, null));
+	}
+
+	private class Partition implements Runnable {
+
+		final String prefix;
+		/**
+		 * Inclusive, or null for the start of the prefix.
+		 */
+		final String lo;
+		/**
+		 * Exclusive, or null for the end of the prefix.
+		 */
+		final String hi;
+		/**
+		 * If not null, objects already listed during discovery.
+		 */
+		final List<S3ObjectSummary> fixed;
+
+		BlockingQueue<S3ObjectSummary> queue;
+		AtomicInteger remaining;
+		/**
+		 * Sorted only: this partition's own page, and how many of its queued objects hold shared buffer permits.
+		 */
+		final Semaphore own = new Semaphore(PARTITION_QUEUE_SIZE);
+		final AtomicInteger borrowed = new AtomicInteger(0);
+
+		Partition(final String prefix, final String lo, final String hi, final List<S3ObjectSummary> fixed) {
+			this.prefix = prefix;
+			this.lo = lo;
+			this.hi = hi;
+			this.fixed = fixed;
+		}
+
+		boolean isWholePrefix() {
+			return this.fixed == null && this.lo == null && this.hi == null;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (this.fixed != null) {
+					for (final S3ObjectSummary o : this.fixed) {
+						if (!put(o)) return;
+					}
+				}
+				else {
+					list();
+				}
+			}
+			catch (RuntimeException e) {
+				PartitionedListing.this.failure.compareAndSet(null, e);
+			}
+			catch (Exception e) {
+				PartitionedListing.this.failure.compareAndSet(null, new IllegalStateException("Listing failed: " + e.getMessage(), e));
+			}
+			finally {
+				try {
+					if (PartitionedListing.this.sorted) {
+						put(END);
+					}
+					else if (this.remaining.decrementAndGet() == 0 || PartitionedListing.this.failure.get() != null) {
+						put(END);
+					}
+				}
+				catch (InterruptedException e) { /* Consumer has gone. */}
+			}
+		}
+
+		private void list() throws Exception {
+			final ListObjectsRequest first = new ListObjectsRequest()
+					.withBucketName(PartitionedListing.this.bucket)
+					.withPrefix(this.prefix);
+			if (this.lo != null) first.setMarker(markerBefore(this.lo));
+			ObjectListing objectListing = S3Helper.listObjects(PartitionedListing.this.s3Client, first);
+			while (!PartitionedListing.this.stopped) {
+				for (final S3ObjectSummary o : objectListing.getObjectSummaries()) {
+					// The marker is only just before lo, so skip anything that belongs to the previous range.
+					if (this.lo != null && S3Helper.KEY_ORDER.compare(o.getKey(), this.lo) < 0) continue;
+					if (this.hi != null && S3Helper.KEY_ORDER.compare(o.getKey(), this.hi) >= 0) return;
+					if (!put(o)) return;
+				}
+				if (objectListing.getNextMarker() == null) break;
+				objectListing = S3Helper.listObjects(PartitionedListing.this.s3Client, new ListObjectsRequest()
+						.withBucketName(PartitionedListing.this.bucket)
+						.withPrefix(this.prefix)
+						.withMarker(objectListing.getNextMarker()));
+			}
+		}
+
+		private boolean put(final S3ObjectSummary o) throws InterruptedException {
+			if (PartitionedListing.this.sorted) {
+				if (o != END && !reserve()) return false;
+				this.queue.add(o);
+				return true;
+			}
+			while (!PartitionedListing.this.stopped) {
+				if (this.queue.offer(o, 1, TimeUnit.SECONDS)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * A permit from this partition's own page, else from the shared buffer, waiting until one is free.
+		 */
+		private boolean reserve() throws InterruptedException {
+			while (!PartitionedListing.this.stopped) {
+				if (this.own.tryAcquire()) return true;
+				if (PartitionedListing.this.sortedBuffer.tryAcquire()) {
+					this.borrowed.incrementAndGet();
+					return true;
+				}
+				if (this.own.tryAcquire(100, TimeUnit.MILLISECONDS)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Called by the reader for each object taken, returning shared permits first.
+		 */
+		void release() {
+			while (true) {
+				final int b = this.borrowed.get();
+				if (b < 1) {
+					this.own.release();
+					return;
+				}
+				if (this.borrowed.compareAndSet(b, b - 1)) {
+					PartitionedListing.this.sortedBuffer.release();
+					return;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A marker that sorts just before lo, whose last character is a range boundary.
+	 */
+	private static String markerBefore(final String lo) {
+		final int last = lo.length() - 1;
+		return lo.substring(0, last) + (char) (lo.charAt(last) - 1) + '\uFFFF';
+	}
+
+}
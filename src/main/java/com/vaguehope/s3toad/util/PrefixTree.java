@@ -0,0 +1,98 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Object count and bytes per / separated prefix, down to a fixed depth.
+ * Only prefixes to that depth are kept, so memory grows with the number of directories, not keys.
+ * Each node's totals include everything below it.
+ */
+public class PrefixTree {
+
+	private final int maxDepth;
+	private final Node root = new Node();
+
+	/**
+	 * @param maxDepth 0 for just the total, 1 for the first level of prefixes, etc.
+	 */
+	public PrefixTree (final int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * @param path key below the listed prefix.
+	 */
+	public void add (final String path, final long size) {
+		Node node = this.root;
+		node.add(size);
+		int start = 0;
+		for (int depth = 0; depth < this.maxDepth; depth++) {
+			final int slash = path.indexOf('/', start);
+			if (slash < 0) break;
+			node = node.child(path.substring(start, slash + 1));
+			node.add(size);
+			start = slash + 1;
+		}
+	}
+
+	public long getCount () {
+		return this.root.count;
+	}
+
+	public long getBytes () {
+		return this.root.bytes;
+	}
+
+	/**
+	 * [bytes]\t[count]\t[prefix] per line, in key order with each prefix after its children, as du does.
+	 */
+	public void write (final Writer w, final String rootPrefix) throws IOException {
+		write(w, rootPrefix, this.root);
+	}
+
+	private static void write (final Writer w, final String path, final Node node) throws IOException {
+		if (node.children != null) {
+			final List<String> names = new ArrayList<String>(node.children.keySet());
+			Collections.sort(names, S3Helper.KEY_ORDER);
+			for (final String name : names) {
+				write(w, path + name, node.children.get(name));
+			}
+		}
+		w.write(String.valueOf(node.bytes));
+		w.write('\t');
+		w.write(String.valueOf(node.count));
+		w.write('\t');
+		w.write(path);
+		w.write('\n');
+	}
+
+	private static class Node {
+
+		long count;
+		long bytes;
+		Map<String, Node> children;
+
+		void add (final long size) {
+			this.count += 1;
+			this.bytes += size;
+		}
+
+		Node child (final String name) {
+			if (this.children == null) this.children = new HashMap<String, Node>();
+			Node n = this.children.get(name);
+			if (n == null) {
+				n = new Node();
+				this.children.put(name, n);
+			}
+			return n;
+		}
+
+	}
+
+}
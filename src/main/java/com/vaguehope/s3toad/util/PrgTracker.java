@@ -21,7 +21,11 @@ public class PrgTracker implements ProgressListener {
 
 	@Override
 	public void progressChanged(ProgressEvent progressEvent) {
-		this.total.addAndGet(progressEvent.getBytesTransfered());
+		transfered(progressEvent.getBytesTransfered());
+	}
+
+	public void transfered(long bytes) {
+		this.total.addAndGet(bytes);
 		if (shouldPrint()) {
 			synchronized (this.lastUpdate) {
 				if (shouldPrint()) {
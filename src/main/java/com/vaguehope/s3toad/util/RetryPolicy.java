@@ -0,0 +1,167 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.vaguehope.s3toad.C;
+
+/**
+ * Retries with exponential backoff and jitter.
+ * Throttling responses back off from a longer base delay.
+ * All retries draw from a token budget shared by everything using the same policy,
+ * successes slowly refill it, so a prefix that keeps failing can not multiply load on S3.
+ */
+public class RetryPolicy {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+	private static final int TOKEN_CAPACITY = 500;
+	private static final int RETRY_COST = 5;
+	private static final int THROTTLE_RETRY_COST = 10;
+	private static final int SUCCESS_REFUND = 1;
+
+	private static final Set<String> THROTTLE_ERROR_CODES = new HashSet<String>(Arrays.asList(
+			"SlowDown", "Throttling", "ThrottlingException", "RequestLimitExceeded", "TooManyRequestsException"));
+
+	/**
+	 * Retryable whatever the status, as CopyObject, UploadPartCopy and CompleteMultipartUpload
+	 * can report these inside a 200 response.
+	 */
+	private static final Set<String> RETRYABLE_ERROR_CODES = new HashSet<String>(Arrays.asList(
+			"InternalError", "ServiceUnavailable", "RequestTimeout"));
+
+	private static final RetryPolicy SHARED = new RetryPolicy(C.AWS_API_RETRY_MAX_ATTEMPTS,
+			C.AWS_API_RETRY_BASE_DELAY_MILLES, C.AWS_API_THROTTLE_BASE_DELAY_MILLES, C.AWS_API_RETRY_MAX_DELAY_MILLES);
+
+	/**
+	 * The process wide policy that all tasks should use.
+	 */
+	public static RetryPolicy shared () {
+		return SHARED;
+	}
+
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long throttleBaseDelayMillis;
+	private final long maxDelayMillis;
+	private final Random random = new Random();
+	private int tokens = TOKEN_CAPACITY;
+
+	public RetryPolicy (final int maxAttempts, final long baseDelayMillis, final long throttleBaseDelayMillis, final long maxDelayMillis) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.throttleBaseDelayMillis = throttleBaseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	public <T> T call (final String what, final Callable<T> callable) throws Exception {
+		int attempt = 0;
+		while (true) {
+			attempt++;
+			final T result;
+			try {
+				result = callable.call();
+			}
+			catch (Exception e) {
+				if (!shouldRetry(what, attempt, e)) throw e;
+				continue;
+			}
+			succeeded();
+			return result;
+		}
+	}
+
+	/**
+	 * For callers with their own retry loop.
+	 * Returns false if the caller should give up, otherwise waits out the backoff and returns true.
+	 */
+	public boolean shouldRetry (final String what, final int attempt, final Exception e) {
+		if (attempt >= this.maxAttempts || !isRetryable(e)) return false;
+
+		final boolean throttled = isThrottle(e);
+		if (!takeTokens(throttled ? THROTTLE_RETRY_COST : RETRY_COST)) {
+			LOG.warn("{} attempt {} failed: '{}'.  Retry budget exhausted, not retrying.", what, attempt, e.getMessage());
+			return false;
+		}
+
+		final long delay = delayMillis(attempt, throttled);
+		LOG.info("{} attempt {} failed{}: '{}'.  It will be retried in {}ms.", what, attempt, throttled ? " (throttled)" : "", e.getMessage(), delay);
+		try {
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Callers using shouldRetry() should call this after each successful request.
+	 */
+	public synchronized void succeeded () {
+		this.tokens = Math.min(TOKEN_CAPACITY, this.tokens + SUCCESS_REFUND);
+	}
+
+	private synchronized boolean takeTokens (final int cost) {
+		if (this.tokens < cost) return false;
+		this.tokens -= cost;
+		return true;
+	}
+
+	private long delayMillis (final int attempt, final boolean throttled) {
+		final long base = throttled ? this.throttleBaseDelayMillis : this.baseDelayMillis;
+		final long exp = Math.min(this.maxDelayMillis, base << Math.min(attempt - 1, 20));
+		final double r;
+		synchronized (this.random) {
+			r = this.random.nextDouble();
+		}
+		// Full jitter normally, but throttling always waits at least half so callers really do slow down.
+		if (throttled) return exp / 2 + (long) (r * (exp / 2));
+		return (long) (r * exp);
+	}
+
+	public static boolean isThrottle (final Exception e) {
+		if (e instanceof MultiObjectDeleteException) {
+			for (final DeleteError de : ((MultiObjectDeleteException) e).getErrors()) {
+				if (THROTTLE_ERROR_CODES.contains(de.getCode())) return true;
+			}
+			return false;
+		}
+		if (!(e instanceof AmazonServiceException)) return false;
+		final AmazonServiceException ase = (AmazonServiceException) e;
+		return ase.getStatusCode() == 503 || ase.getStatusCode() == 429 || THROTTLE_ERROR_CODES.contains(ase.getErrorCode());
+	}
+
+	public static boolean isRetryable (final Exception e) {
+		if (e instanceof InterruptedException || e instanceof InterruptedIOException) return false;
+		if (e.getCause() instanceof InterruptedException || e.getCause() instanceof InterruptedIOException) return false;
+		if (e instanceof MultiObjectDeleteException) {
+			// Per key errors, e.g. InternalError, arrive in a 200 response.
+			for (final DeleteError de : ((MultiObjectDeleteException) e).getErrors()) {
+				if (!"AccessDenied".equals(de.getCode())) return true;
+			}
+			return false;
+		}
+		if (e instanceof AmazonServiceException) {
+			final AmazonServiceException ase = (AmazonServiceException) e;
+			if (isThrottle(e)) return true;
+			if (ase.getStatusCode() >= 500 || ase.getStatusCode() == 408) return true;
+			return RETRYABLE_ERROR_CODES.contains(ase.getErrorCode());
+		}
+		return e instanceof AmazonClientException || e instanceof IOException;
+	}
+
+}
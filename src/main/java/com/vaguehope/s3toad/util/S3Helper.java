@@ -0,0 +1,114 @@
+package com.vaguehope.s3toad.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * S3 calls that many tasks make, wrapped in the shared retry policy.
+ */
+public final class S3Helper {
+
+	private S3Helper () {
+		throw new AssertionError();
+	}
+
+	/**
+	 * The order S3 lists keys in, which is UTF-8 byte order, i.e. code point order.
+	 * Not String.compareTo(), which differs for characters outside the BMP.
+	 */
+	public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+		@Override
+		public int compare (final String a, final String b) {
+			int i = 0;
+			int j = 0;
+			while (i < a.length() && j < b.length()) {
+				final int ca = a.codePointAt(i);
+				final int cb = b.codePointAt(j);
+				if (ca != cb) return ca < cb ? -1 : 1;
+				i += Character.charCount(ca);
+				j += Character.charCount(cb);
+			}
+			if (i < a.length()) return 1;
+			if (j < b.length()) return -1;
+			return 0;
+		}
+	};
+
+	/**
+	 * Treat a non-empty prefix as a directory, adding a / if it does not already end with one.
+	 * Null becomes "".
+	 */
+	public static String dirPrefix (final String prefix) {
+		if (prefix == null) return "";
+		return prefix.length() > 0 && !prefix.endsWith("/") ? prefix + "/" : prefix;
+	}
+
+	/**
+	 * Started listing of the prefix, serial if listThreads is 1, otherwise partitioned.
+	 * @param sorted only matters when partitioned, a serial listing is always in key order.
+	 */
+	public static KeyListing listKeys (final AmazonS3 s3Client, final String bucket, final String prefix, final int listThreads, final boolean sorted) {
+		final KeyListing listing = listThreads > 1
+				? new PartitionedListing(s3Client, bucket, prefix, listThreads, sorted)
+				: new ListingQueue(s3Client, bucket, prefix);
+		listing.start();
+		return listing;
+	}
+
+	/**
+	 * Just the keys of a listing, for tasks that also take keys from a file.
+	 */
+	public static Iterator<String> keysOf (final Iterator<S3ObjectSummary> objects) {
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext () {
+				return objects.hasNext();
+			}
+
+			@Override
+			public String next () {
+				return objects.next().getKey();
+			}
+
+			@Override
+			public void remove () {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public static ObjectListing listObjects (final AmazonS3 s3Client, final ListObjectsRequest request) throws Exception {
+		return RetryPolicy.shared().call("listObjects", new Callable<ObjectListing>() {
+			@Override
+			public ObjectListing call () {
+				return s3Client.listObjects(request);
+			}
+		});
+	}
+
+	public static MultipartUploadListing listMultipartUploads (final AmazonS3 s3Client, final ListMultipartUploadsRequest request) throws Exception {
+		return RetryPolicy.shared().call("listMultipartUploads", new Callable<MultipartUploadListing>() {
+			@Override
+			public MultipartUploadListing call () {
+				return s3Client.listMultipartUploads(request);
+			}
+		});
+	}
+
+	/**
+	 * The upload was completed or aborted, e.g. by watch or another clean, since it was listed.
+	 */
+	public static boolean isNoSuchUpload (final Throwable t) {
+		return t instanceof AmazonServiceException && "NoSuchUpload".equals(((AmazonServiceException) t).getErrorCode());
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Streams the objects of a snapshot written by SnapshotWriter, in key order, holding only the current key.
+ */
+public class SnapshotReader implements Iterator<S3ObjectSummary> {
+
+	private final File file;
+	private final DataInputStream in;
+	private final String bucket;
+	private final String prefix;
+	private byte[] key = new byte[256];
+	private int keyLength = 0;
+	private long count = 0;
+	private S3ObjectSummary next;
+	private boolean ended = false;
+
+	public SnapshotReader (final File file) throws IOException {
+		this.file = file;
+		this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			if (this.in.readInt() != SnapshotWriter.MAGIC) throw new IOException("Not a snapshot: " + file.getAbsolutePath());
+			final int version = this.in.readUnsignedByte();
+			if (version != SnapshotWriter.VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + file.getAbsolutePath());
+			this.bucket = this.in.readUTF();
+			this.prefix = this.in.readUTF();
+		}
+		catch (IOException e) {
+			this.in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Quick check without fully opening, to tell a snapshot file from other arguments.
+	 */
+	public static boolean isSnapshot (final File file) throws IOException {
+		if (!file.isFile()) return false;
+		final DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			return dis.readInt() == SnapshotWriter.MAGIC;
+		}
+		catch (EOFException e) {
+			return false;
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+	public String getBucket () {
+		return this.bucket;
+	}
+
+	public String getPrefix () {
+		return this.prefix;
+	}
+
+	@Override
+	public boolean hasNext () {
+		if (this.next == null && !this.ended) {
+			try {
+				this.next = read();
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Failed to read snapshot " + this.file.getAbsolutePath() + ": " + e.getMessage(), e);
+			}
+			if (this.next == null) this.ended = true;
+		}
+		return this.next != null;
+	}
+
+	@Override
+	public S3ObjectSummary next () {
+		if (!hasNext()) throw new NoSuchElementException();
+		final S3ObjectSummary o = this.next;
+		this.next = null;
+		return o;
+	}
+
+	@Override
+	public void remove () {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close () throws IOException {
+		this.in.close();
+	}
+
+	/**
+	 * Null at the end record.  A file without one was not finished, so its objects are not trusted.
+	 */
+	private S3ObjectSummary read () throws IOException {
+		final int first = this.in.read();
+		if (first < 0) throw new EOFException("Truncated snapshot, no end record after " + this.count + " objects.");
+		final long tag = readVarLong(this.in, first);
+		if (tag == 0) {
+			final long expected = readVarLong(this.in, this.in.readUnsignedByte());
+			if (expected != this.count) throw new IOException("Corrupt snapshot, end record says " + expected + " objects but found " + this.count + ".");
+			return null;
+		}
+		final int shared = (int) (tag - 1);
+		final int suffix = (int) readVarLong(this.in, this.in.readUnsignedByte());
+		if (shared > this.keyLength) throw new IOException("Corrupt snapshot, shared prefix longer than previous key.");
+		if (shared + suffix > this.key.length) this.key = Arrays.copyOf(this.key, Math.max(shared + suffix, this.key.length * 2));
+		this.in.readFully(this.key, shared, suffix);
+		this.keyLength = shared + suffix;
+
+		final S3ObjectSummary o = new S3ObjectSummary();
+		o.setBucketName(this.bucket);
+		o.setKey(new String(this.key, 0, this.keyLength, ListingWriter.UTF8));
+		o.setSize(readVarLong(this.in, this.in.readUnsignedByte()));
+		o.setLastModified(new Date(readVarLong(this.in, this.in.readUnsignedByte())));
+		final byte[] etag = new byte[(int) readVarLong(this.in, this.in.readUnsignedByte())];
+		this.in.readFully(etag);
+		o.setETag(new String(etag, ListingWriter.UTF8));
+		this.count += 1;
+		return o;
+	}
+
+	private static long readVarLong (final InputStream is, final int firstByte) throws IOException {
+		long v = firstByte & 0x7F;
+		int b = firstByte;
+		int shift = 7;
+		while ((b & 0x80) != 0) {
+			b = is.read();
+			if (b < 0) throw new EOFException("Truncated snapshot.");
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		}
+		return v;
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Writes a listing snapshot: keys in S3 order, each front coded against the one before,
+ * so the long shared prefixes typical of keys cost a byte or two.
+ * <p>
+ * Layout:
+ * <pre>
+ * header:  [magic S3TS][byte version][UTF bucket][UTF prefix]
+ * object:  [varint shared key bytes + 1][varint suffix length][suffix UTF-8][varlong size][varlong mtime millis][varint etag length][etag ASCII]
+ * end:     [varint 0][varlong object count]
+ * </pre>
+ * Objects must be written in key order, which is what lets SnapshotReader merge two snapshots.
+ * <p>
+ * Written to [file].tmp, which commit() finishes with the end record and renames into place,
+ * so a listing that fails part way never leaves a snapshot that looks complete.
+ */
+public class SnapshotWriter {
+
+	static final int MAGIC = 0x53335453; // S3TS
+	static final int VERSION = 2;
+
+	private final File file;
+	private final File tmpFile;
+	private final FileOutputStream fos;
+	private final DataOutputStream out;
+	private boolean committed = false;
+	private byte[] prevKey = new byte[0];
+	private String prevKeyString = null;
+	private long count = 0;
+
+	public SnapshotWriter (final File file, final String bucket, final String prefix) throws IOException {
+		this.file = file;
+		this.tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		this.fos = new FileOutputStream(this.tmpFile);
+		this.out = new DataOutputStream(new BufferedOutputStream(this.fos, 64 * 1024));
+		this.out.writeInt(MAGIC);
+		this.out.writeByte(VERSION);
+		this.out.writeUTF(bucket);
+		this.out.writeUTF(prefix != null ? prefix : "");
+	}
+
+	public long getCount () {
+		return this.count;
+	}
+
+	public void write (final S3ObjectSummary o) throws IOException {
+		if (this.prevKeyString != null && S3Helper.KEY_ORDER.compare(o.getKey(), this.prevKeyString) <= 0) {
+			throw new IllegalStateException("Keys out of order: '" + o.getKey() + "' after '" + this.prevKeyString + "'.");
+		}
+		final byte[] key = o.getKey().getBytes(ListingWriter.UTF8);
+		int shared = 0;
+		final int max = Math.min(key.length, this.prevKey.length);
+		while (shared < max && key[shared] == this.prevKey[shared]) {
+			shared++;
+		}
+		writeVarLong(this.out, shared + 1);
+		writeVarLong(this.out, key.length - shared);
+		this.out.write(key, shared, key.length - shared);
+		writeVarLong(this.out, o.getSize());
+		writeVarLong(this.out, o.getLastModified().getTime());
+		final String etag = o.getETag() != null ? o.getETag() : "";
+		writeVarLong(this.out, etag.length());
+		this.out.writeBytes(etag);
+
+		this.prevKey = key;
+		this.prevKeyString = o.getKey();
+		this.count += 1;
+	}
+
+	/**
+	 * Write the end record and move the snapshot into place.
+	 */
+	public void commit () throws IOException {
+		writeVarLong(this.out, 0);
+		writeVarLong(this.out, this.count);
+		this.out.flush();
+		this.fos.getFD().sync();
+		this.out.close();
+		FileHelper.rename(this.tmpFile, this.file);
+		this.committed = true;
+	}
+
+	/**
+	 * If not committed, deletes the partial snapshot.
+	 */
+	public void close () throws IOException {
+		if (this.committed) return;
+		try {
+			this.out.close();
+		}
+		finally {
+			if (this.tmpFile.exists() && !this.tmpFile.delete()) throw new IOException("Failed to delete " + this.tmpFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * 7 bits per byte, low first, high bit set on all but the last.  Values must not be negative.
+	 */
+	static void writeVarLong (final OutputStream os, final long value) throws IOException {
+		if (value < 0) throw new IllegalArgumentException("Negative: " + value);
+		long v = value;
+		while ((v & ~0x7FL) != 0) {
+			os.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		os.write((int) v);
+	}
+
+}
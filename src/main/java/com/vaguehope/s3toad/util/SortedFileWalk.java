@@ -0,0 +1,112 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lazily walks the files under a directory in the order S3 would list their relative paths as keys,
+ * so a walk can be merged with a listing.
+ * Memory is one directory's entries per level of depth.
+ * <p>
+ * Depth first with each directory's entries sorted as if directories ended in /,
+ * which puts "a-b" before "a/x" just as S3 does.
+ * Symlinked directories are followed, but each real directory is only walked once, so a link to a parent can not loop.
+ */
+public class SortedFileWalk implements Iterator<File> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SortedFileWalk.class);
+
+	private final LinkedList<Iterator<Entry>> stack = new LinkedList<Iterator<Entry>>();
+	private final Set<String> walked = new HashSet<String>();
+	private File next;
+
+	public SortedFileWalk (final File dir) {
+		push(dir);
+	}
+
+	@Override
+	public boolean hasNext () {
+		while (this.next == null && !this.stack.isEmpty()) {
+			final Iterator<Entry> top = this.stack.getFirst();
+			if (!top.hasNext()) {
+				this.stack.removeFirst();
+				continue;
+			}
+			final Entry e = top.next();
+			if (e.dir) {
+				push(e.file);
+			}
+			else {
+				this.next = e.file;
+			}
+		}
+		return this.next != null;
+	}
+
+	@Override
+	public File next () {
+		if (!hasNext()) throw new NoSuchElementException();
+		final File f = this.next;
+		this.next = null;
+		return f;
+	}
+
+	@Override
+	public void remove () {
+		throw new UnsupportedOperationException();
+	}
+
+	private void push (final File dir) {
+		final String canonical = FileHelper.canonicalPath(dir);
+		if (!this.walked.add(canonical)) {
+			LOG.warn("Skipping {}, already walked as {}.", dir.getAbsolutePath(), canonical);
+			return;
+		}
+		final File[] children = dir.listFiles();
+		if (children == null) return;
+		final Entry[] entries = new Entry[children.length];
+		int n = 0;
+		for (final File child : children) {
+			if (child.isDirectory()) {
+				entries[n++] = new Entry(child, true);
+			}
+			else if (child.isFile()) {
+				entries[n++] = new Entry(child, false);
+			}
+		}
+		final Entry[] sorted = Arrays.copyOf(entries, n);
+		Arrays.sort(sorted, ENTRY_ORDER);
+		this.stack.addFirst(Arrays.asList(sorted).iterator());
+	}
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare (final Entry a, final Entry b) {
+			return S3Helper.KEY_ORDER.compare(a.sortName, b.sortName);
+		}
+	};
+
+	private static class Entry {
+
+		final File file;
+		final boolean dir;
+		final String sortName;
+
+		Entry (final File file, final boolean dir) {
+			this.file = file;
+			this.dir = dir;
+			this.sortName = dir ? file.getName() + "/" : file.getName();
+		}
+
+	}
+
+}
@@ -0,0 +1,258 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local record of completed transfers, so a later run can skip them with a map lookup
+ * instead of a stat of the local file or a request to S3.
+ * <p>
+ * Held in memory as a hash map, persisted as a compacted file of all entries plus an append-only log of entries since.
+ * Each record carries a CRC so a torn or corrupt tail left by a crash is dropped, which at worst means transferring that file again.
+ * Opening replays the log and, once it has grown, rewrites the compacted file and empties the log.
+ * <p>
+ * Record: [int payload length][payload][int CRC32 of payload], payload: [UTF id][long size][long mtime][UTF etag].
+ */
+public class TransferIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TransferIndex.class);
+
+	private static final File DEFAULT_DIR = new File(new File(System.getProperty("user.home"), ".s3toad"), "index");
+	private static final int MAGIC = 0x53335449; // S3TI
+	private static final int MAX_RECORD = 1024 * 1024;
+	private static final long SYNC_INTERVAL_MILLIS = 1000L;
+
+	public static class Entry {
+
+		private final long size;
+		private final long mtime;
+		private final String eTag;
+
+		public Entry (final long size, final long mtime, final String eTag) {
+			this.size = size;
+			this.mtime = mtime;
+			this.eTag = eTag != null ? eTag : "";
+		}
+
+		public long getSize () {
+			return this.size;
+		}
+
+		public long getMtime () {
+			return this.mtime;
+		}
+
+		public String getETag () {
+			return this.eTag;
+		}
+
+	}
+
+	private final File compactedFile;
+	private final File logFile;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private FileOutputStream log;
+	private long lastSync = 0;
+	private boolean unsynced = false;
+	private boolean tornTail = false;
+
+	/**
+	 * Index in the default directory for one job, e.g. ("rpull", bucket, prefix, local dir).
+	 */
+	public static TransferIndex open (final String... scope) throws IOException {
+		final StringBuilder s = new StringBuilder();
+		for (final String p : scope) {
+			s.append(p).append('\n');
+		}
+		return new TransferIndex(new File(DEFAULT_DIR, indexName(s.toString())));
+	}
+
+	/**
+	 * @param dir holds this index's files, created if missing.
+	 */
+	public TransferIndex (final File dir) throws IOException {
+		if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("Failed mkdirs: " + dir.getAbsolutePath());
+		this.compactedFile = new File(dir, "index");
+		this.logFile = new File(dir, "log");
+
+		// A crash during a non-atomic rename in compact() can leave only the temp file.
+		final File tmp = compactedTmpFile();
+		if (!this.compactedFile.exists() && tmp.exists()) {
+			LOG.warn("Recovering {} from {}.", this.compactedFile.getAbsolutePath(), tmp.getAbsolutePath());
+			FileHelper.rename(tmp, this.compactedFile);
+		}
+		final int compacted = read(this.compactedFile, true);
+		final int logged = read(this.logFile, false);
+		// Appending after a torn record would hide everything appended, so compact that away first.
+		if (this.tornTail || (logged > 0 && logged >= compacted / 4)) compact();
+		this.log = new FileOutputStream(this.logFile, true);
+		LOG.info("index={} entries={}", dir.getAbsolutePath(), this.entries.size());
+	}
+
+	public synchronized Entry get (final String id) {
+		return this.entries.get(id);
+	}
+
+	public synchronized int size () {
+		return this.entries.size();
+	}
+
+	/**
+	 * Written through to the OS straight away so it survives the process dying,
+	 * and synced to disk at most once a second or on close().
+	 */
+	public synchronized void put (final String id, final Entry entry) throws IOException {
+		if (this.log == null) throw new IllegalStateException("Index closed.");
+		this.log.write(record(id, entry));
+		this.entries.put(id, entry);
+		this.unsynced = true;
+		final long now = System.currentTimeMillis();
+		if (now - this.lastSync >= SYNC_INTERVAL_MILLIS) sync(now);
+	}
+
+	public synchronized void close () throws IOException {
+		if (this.log == null) return;
+		if (this.unsynced) sync(System.currentTimeMillis());
+		this.log.close();
+		this.log = null;
+	}
+
+	private void sync (final long now) throws IOException {
+		this.log.getFD().sync();
+		this.lastSync = now;
+		this.unsynced = false;
+	}
+
+	/**
+	 * Reads records up to the end or the first bad one, noting if any bytes were left over.
+	 * @return number of records read.
+	 */
+	private int read (final File file, final boolean compacted) throws IOException {
+		if (!file.exists()) return 0;
+		final long fileLength = file.length();
+		int count = 0;
+		long goodLength = 0;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			if (compacted) {
+				if (in.readInt() != MAGIC) throw new IOException("Not an index: " + file.getAbsolutePath());
+				goodLength = 4;
+			}
+			while (goodLength < fileLength) {
+				final int length = in.readInt();
+				if (length < 0 || length > MAX_RECORD) break;
+				final byte[] payload = new byte[length];
+				in.readFully(payload);
+				if (in.readInt() != crc(payload)) break;
+				final DataInputStream p = new DataInputStream(new ByteArrayInputStream(payload));
+				final String id = p.readUTF();
+				this.entries.put(id, new Entry(p.readLong(), p.readLong(), p.readUTF()));
+				count += 1;
+				goodLength += 4 + length + 4;
+			}
+		}
+		catch (EOFException e) {
+			// A torn final record from a crash.
+		}
+		finally {
+			in.close();
+		}
+		if (goodLength < fileLength) {
+			LOG.warn("Ignoring {} bytes of torn or corrupt records at end of {}.", fileLength - goodLength, file.getAbsolutePath());
+			this.tornTail = true;
+		}
+		return count;
+	}
+
+	private File compactedTmpFile () {
+		return new File(this.compactedFile.getParentFile(), this.compactedFile.getName() + ".tmp");
+	}
+
+	/**
+	 * Writes all entries to a temp file, syncs it and renames it over the compacted file, then empties the log.
+	 * A crash before the rename leaves the old compacted file and log, after it the log just repeats entries.
+	 * A crash part way through a fallback rename leaves only the temp file, which opening recovers.
+	 */
+	private void compact () throws IOException {
+		final File tmp = compactedTmpFile();
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+			out.writeInt(MAGIC);
+			for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+				out.write(record(e.getKey(), e.getValue()));
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+		FileHelper.rename(tmp, this.compactedFile);
+		new FileOutputStream(this.logFile, false).close();
+		LOG.info("compacted={} entries={}", this.compactedFile.getAbsolutePath(), this.entries.size());
+	}
+
+	private static byte[] record (final String id, final Entry entry) throws IOException {
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream(id.length() + 64);
+		final DataOutputStream p = new DataOutputStream(payload);
+		p.writeUTF(id);
+		p.writeLong(entry.getSize());
+		p.writeLong(entry.getMtime());
+		p.writeUTF(entry.getETag());
+		p.flush();
+		final byte[] bytes = payload.toByteArray();
+
+		// One write() per record, so a crash can only tear the last one.
+		final ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+		final DataOutputStream r = new DataOutputStream(record);
+		r.writeInt(bytes.length);
+		r.write(bytes);
+		r.writeInt(crc(bytes));
+		r.flush();
+		return record.toByteArray();
+	}
+
+	private static int crc (final byte[] bytes) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	private static String indexName (final String scope) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			final byte[] hash = md.digest(scope.getBytes("UTF-8"));
+			final StringBuilder s = new StringBuilder(hash.length * 2);
+			for (final byte b : hash) {
+				s.append(String.format("%02x", b));
+			}
+			return s.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
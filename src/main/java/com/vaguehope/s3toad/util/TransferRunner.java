@@ -0,0 +1,106 @@
+package com.vaguehope.s3toad.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs whole-object transfers on its own pool, at most one per thread in flight,
+ * so a caller walking a long listing never queues more than it can run.
+ * The first failure stops further submits, and is kept for the caller to report once the rest are done.
+ */
+public class TransferRunner {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TransferRunner.class);
+
+	private final String action;
+	private final int threads;
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+	private final AtomicLong transferedCount = new AtomicLong(0);
+	private final AtomicLong transferedBytes = new AtomicLong(0);
+	private final AtomicLong unchangedCount = new AtomicLong(0);
+
+	/**
+	 * @param action for logging failures, e.g. "copy".
+	 */
+	public TransferRunner(final String threadName, final int threads, final String action) {
+		this.action = action;
+		this.threads = threads;
+		this.executor = ExecutorFactory.newFixedThreadPool(threadName, threads);
+		this.inFlight = new Semaphore(threads);
+	}
+
+	/**
+	 * Waits for a free thread, then runs the transfer on it.
+	 * It counts as transfered unless it returns Boolean.FALSE, meaning it found nothing needed transferring.
+	 * @return false, without running it, if an earlier transfer has failed.
+	 */
+	public boolean submit(final String name, final long size, final Callable<?> transfer) throws InterruptedException {
+		this.inFlight.acquire();
+		if (this.failure.get() != null) {
+			this.inFlight.release();
+			return false;
+		}
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (Boolean.FALSE.equals(transfer.call())) {
+						TransferRunner.this.unchangedCount.incrementAndGet();
+					}
+					else {
+						TransferRunner.this.transferedCount.incrementAndGet();
+						TransferRunner.this.transferedBytes.addAndGet(size);
+					}
+				}
+				catch (Exception e) {
+					LOG.error("Failed to {} {}: {}", TransferRunner.this.action, name, e.toString());
+					TransferRunner.this.failure.compareAndSet(null, e);
+				}
+				finally {
+					TransferRunner.this.inFlight.release();
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Waits for every submitted transfer to finish.
+	 */
+	public void awaitAll() throws InterruptedException {
+		this.inFlight.acquire(this.threads);
+		this.inFlight.release(this.threads);
+	}
+
+	public void shutdownNow() {
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * The first failure, or null.
+	 */
+	public Exception getFailure() {
+		return this.failure.get();
+	}
+
+	public long getTransferedCount() {
+		return this.transferedCount.get();
+	}
+
+	public long getTransferedBytes() {
+		return this.transferedBytes.get();
+	}
+
+	public long getUnchangedCount() {
+		return this.unchangedCount.get();
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * Small append-only record of one multipart upload: its ID and each part as it completes.
+ * Lets an interrupted upload of an unchanged file carry on where it stopped.
+ * <p>
+ * Format, one entry per line:
+ * <pre>
+ * upload	[uploadId]	[length]	[lastModified]	[chunkSize]
+ * part	[partNumber]	[etag]
+ * </pre>
+ */
+public class UploadJournal {
+
+	private static final String ENCODING = "UTF-8";
+	private static final File DEFAULT_DIR = new File(new File(System.getProperty("user.home"), ".s3toad"), "journal");
+
+	private final File journalFile;
+	private final long length;
+	private final long lastModified;
+	private final long chunkSize;
+
+	private String uploadId;
+	private String staleUploadId;
+	private final Map<Integer, PartETag> parts = new LinkedHashMap<Integer, PartETag>();
+	private FileOutputStream out;
+
+	public UploadJournal (final String bucket, final String key, final File file, final long chunkSize) throws IOException {
+		this(new File(DEFAULT_DIR, journalName(bucket, key, file)), file.length(), file.lastModified(), chunkSize);
+	}
+
+	public UploadJournal (final File journalFile, final long length, final long lastModified, final long chunkSize) throws IOException {
+		this.journalFile = journalFile;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.chunkSize = chunkSize;
+		read();
+	}
+
+	public File getJournalFile () {
+		return this.journalFile;
+	}
+
+	/**
+	 * Upload ID from a previous run for the same file at the same size, mtime and chunk size, or null.
+	 */
+	public String getUploadId () {
+		return this.uploadId;
+	}
+
+	/**
+	 * Upload ID recorded for a different version of the file, which the caller may want to abort, or null.
+	 */
+	public String getStaleUploadId () {
+		return this.staleUploadId;
+	}
+
+	/**
+	 * Parts recorded as complete by a previous run, keyed by part number.
+	 */
+	public Map<Integer, PartETag> getParts () {
+		return this.parts;
+	}
+
+	/**
+	 * Replaces any previous journal with a new upload.
+	 */
+	public synchronized void start (final String newUploadId) throws IOException {
+		close();
+		this.uploadId = newUploadId;
+		this.parts.clear();
+		final File dir = this.journalFile.getParentFile();
+		if (dir != null && !dir.mkdirs() && !dir.isDirectory()) throw new IOException("Failed mkdirs: " + dir.getAbsolutePath());
+		this.out = new FileOutputStream(this.journalFile, false);
+		append("upload\t" + newUploadId + "\t" + this.length + "\t" + this.lastModified + "\t" + this.chunkSize);
+	}
+
+	/**
+	 * Continue appending to the journal of a previous run.
+	 */
+	public synchronized void resume () throws IOException {
+		if (this.uploadId == null) throw new IllegalStateException("Nothing to resume.");
+		if (this.out == null) {
+			this.out = new FileOutputStream(this.journalFile, true);
+			// Terminate any torn line left by a crash, blank lines are ignored when reading.
+			this.out.write('\n');
+		}
+	}
+
+	public synchronized void partUploaded (final PartETag partETag) throws IOException {
+		this.parts.put(partETag.getPartNumber(), partETag);
+		append("part\t" + partETag.getPartNumber() + "\t" + partETag.getETag());
+	}
+
+	public synchronized void close () throws IOException {
+		if (this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+	}
+
+	/**
+	 * Call once the upload is complete or aborted.
+	 */
+	public synchronized void delete () throws IOException {
+		close();
+		if (this.journalFile.exists() && !this.journalFile.delete()) throw new IOException("Failed to delete: " + this.journalFile.getAbsolutePath());
+	}
+
+	private void append (final String line) throws IOException {
+		if (this.out == null) throw new IllegalStateException("Journal not open.");
+		this.out.write((line + "\n").getBytes(ENCODING));
+		this.out.flush();
+		this.out.getFD().sync();
+	}
+
+	private void read () throws IOException {
+		if (!this.journalFile.exists()) return;
+		final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(this.journalFile), ENCODING));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				final String[] p = line.split("\t");
+				if (p.length == 5 && "upload".equals(p[0])) {
+					if (Long.parseLong(p[2]) != this.length
+							|| Long.parseLong(p[3]) != this.lastModified
+							|| Long.parseLong(p[4]) != this.chunkSize) {
+						this.staleUploadId = p[1];
+						this.uploadId = null;
+						this.parts.clear();
+						return;
+					}
+					this.uploadId = p[1];
+				}
+				else if (p.length == 3 && "part".equals(p[0]) && this.uploadId != null) {
+					final int partNumber = Integer.parseInt(p[1]);
+					this.parts.put(partNumber, new PartETag(partNumber, p[2]));
+				}
+				// Anything else is a torn final line from a crash, ignore it.
+			}
+		}
+		catch (NumberFormatException e) {
+			// Torn line, keep what was read before it.
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	private static String journalName (final String bucket, final String key, final File file) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			final byte[] hash = md.digest((bucket + "\n" + key + "\n" + file.getAbsolutePath()).getBytes(ENCODING));
+			final StringBuilder s = new StringBuilder(hash.length * 2);
+			for (final byte b : hash) {
+				s.append(String.format("%02x", b));
+			}
+			return s.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
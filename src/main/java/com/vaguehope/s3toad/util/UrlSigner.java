@@ -0,0 +1,165 @@
+package com.vaguehope.s3toad.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSSessionCredentials;
+
+/**
+ * Presigns GET URLs with AWS signature version 4 (query string auth), entirely locally.
+ * <p>
+ * The signing key is derived from the secret with four HMACs and only changes with the date,
+ * so it is kept for the last date and access key used.  Signing a URL is then two SHA-256 sized HMACs and a hash.
+ * <p>
+ * Not thread safe, use one per thread.
+ */
+public class UrlSigner {
+
+	private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	private static final String SERVICE = "s3";
+	private static final String HMAC = "HmacSHA256";
+	/**
+	 * Longest expiry SigV4 allows, 7 days.
+	 */
+	public static final long MAX_EXPIRY_SECONDS = 7L * 24L * 60L * 60L;
+
+	private final String region;
+	private final String endpoint;
+	private final Mac mac;
+	private final MessageDigest sha256;
+	private final SimpleDateFormat dateTimeFormat;
+	private final StringBuilder sb = new StringBuilder(512);
+
+	private String cachedKeyDate;
+	private String cachedKeyAccessKey;
+	private byte[] cachedKey;
+
+	/**
+	 * @param endpoint host of the region's S3 endpoint, e.g. s3-eu-west-1.amazonaws.com.
+	 */
+	public UrlSigner (final String region, final String endpoint) {
+		this.region = region;
+		this.endpoint = endpoint;
+		try {
+			this.mac = Mac.getInstance(HMAC);
+			this.sha256 = MessageDigest.getInstance("SHA-256");
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		this.dateTimeFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		this.dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * @param now signing time, the URL is valid from then for expirySeconds.
+	 */
+	public String sign (final AWSCredentials credentials, final String bucket, final String key, final Date now, final long expirySeconds) {
+		if (expirySeconds < 1 || expirySeconds > MAX_EXPIRY_SECONDS) throw new IllegalArgumentException("Expiry must be 1 to " + MAX_EXPIRY_SECONDS + " seconds: " + expirySeconds);
+		final String dateTime = this.dateTimeFormat.format(now);
+		final String date = dateTime.substring(0, 8);
+		final String scope = date + "/" + this.region + "/" + SERVICE + "/aws4_request";
+
+		// Path style for names that are not valid host names, or have dots that would not match the wildcard certificate.
+		final boolean virtualHost = bucket.indexOf('.') < 0 && bucket.indexOf('_') < 0 && bucket.equals(bucket.toLowerCase());
+		final String host = virtualHost ? bucket + "." + this.endpoint : this.endpoint;
+		final String path = virtualHost ? "/" + uriEncode(key, false) : "/" + uriEncode(bucket, false) + "/" + uriEncode(key, false);
+
+		// Parameters in name order, as the canonical request needs.
+		final StringBuilder q = new StringBuilder(256);
+		q.append("X-Amz-Algorithm=").append(ALGORITHM);
+		q.append("&X-Amz-Credential=").append(uriEncode(credentials.getAWSAccessKeyId() + "/" + scope, true));
+		q.append("&X-Amz-Date=").append(dateTime);
+		q.append("&X-Amz-Expires=").append(expirySeconds);
+		if (credentials instanceof AWSSessionCredentials) {
+			q.append("&X-Amz-Security-Token=").append(uriEncode(((AWSSessionCredentials) credentials).getSessionToken(), true));
+		}
+		q.append("&X-Amz-SignedHeaders=host");
+		final String query = q.toString();
+
+		this.sb.setLength(0);
+		this.sb.append("GET\n").append(path).append('\n').append(query).append('\n')
+				.append("host:").append(host).append("\n\n")
+				.append("host\n")
+				.append("UNSIGNED-PAYLOAD");
+		final String canonicalRequestHash = hex(this.sha256.digest(utf8(this.sb.toString())));
+
+		this.sb.setLength(0);
+		this.sb.append(ALGORITHM).append('\n').append(dateTime).append('\n').append(scope).append('\n').append(canonicalRequestHash);
+		final String signature = hex(hmac(signingKey(credentials, date), this.sb.toString()));
+
+		return "https://" + host + path + "?" + query + "&X-Amz-Signature=" + signature;
+	}
+
+	private byte[] signingKey (final AWSCredentials credentials, final String date) {
+		if (this.cachedKey == null || !date.equals(this.cachedKeyDate) || !credentials.getAWSAccessKeyId().equals(this.cachedKeyAccessKey)) {
+			byte[] k = utf8("AWS4" + credentials.getAWSSecretKey());
+			k = hmac(k, date);
+			k = hmac(k, this.region);
+			k = hmac(k, SERVICE);
+			k = hmac(k, "aws4_request");
+			this.cachedKey = k;
+			this.cachedKeyDate = date;
+			this.cachedKeyAccessKey = credentials.getAWSAccessKeyId();
+		}
+		return this.cachedKey;
+	}
+
+	private byte[] hmac (final byte[] key, final String data) {
+		try {
+			this.mac.init(new SecretKeySpec(key, HMAC));
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		return this.mac.doFinal(utf8(data));
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+	private static String hex (final byte[] bytes) {
+		final char[] c = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			c[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			c[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(c);
+	}
+
+	/**
+	 * RFC 3986 percent encoding of everything but unreserved characters, and / unless encodeSlash.
+	 */
+	static String uriEncode (final String s, final boolean encodeSlash) {
+		final StringBuilder r = new StringBuilder(s.length() + 16);
+		for (final byte b : utf8(s)) {
+			final int c = b & 0xFF;
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+				r.append((char) c);
+			}
+			else {
+				r.append('%').append(HEX_UPPER[c >> 4]).append(HEX_UPPER[c & 0xF]);
+			}
+		}
+		return r.toString();
+	}
+
+	private static byte[] utf8 (final String s) {
+		try {
+			return s.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
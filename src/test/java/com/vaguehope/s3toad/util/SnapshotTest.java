@@ -0,0 +1,194 @@
+package com.vaguehope.s3toad.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+public class SnapshotTest {
+
+	private File file;
+
+	@Before
+	public void before () throws IOException {
+		this.file = File.createTempFile("snapshot", ".s3ts");
+	}
+
+	@After
+	public void after () {
+		this.file.delete();
+		new File(this.file.getAbsolutePath() + ".tmp").delete();
+	}
+
+	@Test
+	public void itReadsBackWhatWasWritten () throws Exception {
+		final String[] keys = {
+				"p/a",
+				"p/a-b",
+				"p/a/x",
+				"p/a/yé",
+				"p/b",
+				"p/😀", // Outside the BMP, so a surrogate pair in Java and 4 bytes of UTF-8.
+				"p/😀/😁"
+		};
+		final SnapshotWriter w = new SnapshotWriter(this.file, "bucket", "p/");
+		for (int i = 0; i < keys.length; i++) {
+			w.write(object(keys[i], i * 100000L, "etag" + i));
+		}
+		w.commit();
+		w.close();
+
+		assertTrue(SnapshotReader.isSnapshot(this.file));
+		final SnapshotReader r = new SnapshotReader(this.file);
+		try {
+			assertEquals("bucket", r.getBucket());
+			assertEquals("p/", r.getPrefix());
+			final List<S3ObjectSummary> read = readAll(r);
+			assertEquals(keys.length, read.size());
+			for (int i = 0; i < keys.length; i++) {
+				final S3ObjectSummary o = read.get(i);
+				assertEquals(keys[i], o.getKey());
+				assertEquals("bucket", o.getBucketName());
+				assertEquals(i * 100000L, o.getSize());
+				assertEquals("etag" + i, o.getETag());
+				assertEquals(1700000000123L, o.getLastModified().getTime());
+			}
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void itReadsBackAnEmptySnapshot () throws Exception {
+		final SnapshotWriter w = new SnapshotWriter(this.file, "bucket", null);
+		w.commit();
+		w.close();
+
+		final SnapshotReader r = new SnapshotReader(this.file);
+		try {
+			assertEquals("", r.getPrefix());
+			assertFalse(r.hasNext());
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void itLeavesNoSnapshotIfNotCommitted () throws Exception {
+		assertTrue(this.file.delete());
+		final SnapshotWriter w = new SnapshotWriter(this.file, "bucket", "");
+		w.write(object("a", 1, "e"));
+		w.close();
+
+		assertFalse(this.file.exists());
+		assertFalse(new File(this.file.getAbsolutePath() + ".tmp").exists());
+	}
+
+	@Test
+	public void itFailsWithoutAnEndRecord () throws Exception {
+		writeTwoObjects();
+		// Drop the end record, [varint 0][varlong 2].
+		setLength(this.file.length() - 2);
+
+		final SnapshotReader r = new SnapshotReader(this.file);
+		try {
+			readAll(r);
+			fail("Expected truncated snapshot to fail.");
+		}
+		catch (final IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Truncated snapshot, no end record after 2 objects."));
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void itFailsIfTheEndRecordCountIsWrong () throws Exception {
+		writeTwoObjects();
+		// The last byte is the end record's count.
+		final RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			raf.writeByte(3);
+		}
+		finally {
+			raf.close();
+		}
+
+		final SnapshotReader r = new SnapshotReader(this.file);
+		try {
+			readAll(r);
+			fail("Expected count mismatch to fail.");
+		}
+		catch (final IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("end record says 3 objects but found 2."));
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void itRefusesKeysOutOfOrder () throws Exception {
+		final SnapshotWriter w = new SnapshotWriter(this.file, "bucket", "");
+		try {
+			w.write(object("b", 1, "e"));
+			w.write(object("a", 1, "e"));
+		}
+		finally {
+			w.close();
+		}
+	}
+
+	private void writeTwoObjects () throws IOException {
+		final SnapshotWriter w = new SnapshotWriter(this.file, "bucket", "");
+		w.write(object("a", 1, "e1"));
+		w.write(object("b", 2, "e2"));
+		w.commit();
+		w.close();
+	}
+
+	private void setLength (final long length) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+		try {
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static List<S3ObjectSummary> readAll (final SnapshotReader r) {
+		final List<S3ObjectSummary> ret = new ArrayList<S3ObjectSummary>();
+		while (r.hasNext()) {
+			ret.add(r.next());
+		}
+		return ret;
+	}
+
+	private static S3ObjectSummary object (final String key, final long size, final String eTag) {
+		final S3ObjectSummary o = new S3ObjectSummary();
+		o.setKey(key);
+		o.setSize(size);
+		o.setETag(eTag);
+		o.setLastModified(new Date(1700000000123L));
+		return o;
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.vaguehope.s3toad.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransferIndexTest {
+
+	private File dir;
+
+	@Before
+	public void before () throws IOException {
+		this.dir = File.createTempFile("index", "");
+		assertTrue(this.dir.delete());
+	}
+
+	@After
+	public void after () {
+		final File[] files = this.dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		this.dir.delete();
+	}
+
+	@Test
+	public void itReadsBackWhatWasPut () throws Exception {
+		final TransferIndex i = new TransferIndex(this.dir);
+		i.put("a", new TransferIndex.Entry(1, 10, "e1"));
+		i.put("b", new TransferIndex.Entry(2, 20, null));
+		i.close();
+
+		final TransferIndex r = new TransferIndex(this.dir);
+		try {
+			assertEquals(2, r.size());
+			assertEntry(r.get("a"), 1, 10, "e1");
+			assertEntry(r.get("b"), 2, 20, "");
+			assertNull(r.get("c"));
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void itDropsATruncatedFinalRecord () throws Exception {
+		final TransferIndex i = new TransferIndex(this.dir);
+		i.put("a", new TransferIndex.Entry(1, 10, "e1"));
+		i.put("b", new TransferIndex.Entry(2, 20, "e2"));
+		i.close();
+		final File log = new File(this.dir, "log");
+		setLength(log, log.length() - 3);
+
+		final TransferIndex r = new TransferIndex(this.dir);
+		assertEquals(1, r.size());
+		assertEntry(r.get("a"), 1, 10, "e1");
+		assertNull(r.get("b"));
+		// Appended after the torn record, so must still be found.
+		r.put("c", new TransferIndex.Entry(3, 30, "e3"));
+		r.close();
+
+		final TransferIndex r2 = new TransferIndex(this.dir);
+		try {
+			assertEquals(2, r2.size());
+			assertEntry(r2.get("a"), 1, 10, "e1");
+			assertEntry(r2.get("c"), 3, 30, "e3");
+		}
+		finally {
+			r2.close();
+		}
+	}
+
+	@Test
+	public void itCompactsTheLog () throws Exception {
+		final TransferIndex i = new TransferIndex(this.dir);
+		for (int n = 0; n < 10; n++) {
+			i.put("k" + n, new TransferIndex.Entry(n, n, "e" + n));
+		}
+		i.put("k1", new TransferIndex.Entry(100, 100, "replaced"));
+		i.close();
+
+		final TransferIndex c = new TransferIndex(this.dir);
+		c.close();
+		assertTrue(new File(this.dir, "index").exists());
+		assertEquals(0, new File(this.dir, "log").length());
+		assertFalse(new File(this.dir, "index.tmp").exists());
+
+		final TransferIndex r = new TransferIndex(this.dir);
+		try {
+			assertEquals(10, r.size());
+			assertEntry(r.get("k0"), 0, 0, "e0");
+			assertEntry(r.get("k1"), 100, 100, "replaced");
+			assertEntry(r.get("k9"), 9, 9, "e9");
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	@Test
+	public void itRecoversFromAnInterruptedRename () throws Exception {
+		final TransferIndex i = new TransferIndex(this.dir);
+		i.put("a", new TransferIndex.Entry(1, 10, "e1"));
+		i.close();
+		new TransferIndex(this.dir).close();
+		// As left by a crash between the delete and the rename of FileHelper.rename()'s fallback.
+		assertTrue(new File(this.dir, "index").renameTo(new File(this.dir, "index.tmp")));
+
+		final TransferIndex r = new TransferIndex(this.dir);
+		try {
+			assertEquals(1, r.size());
+			assertEntry(r.get("a"), 1, 10, "e1");
+			assertTrue(new File(this.dir, "index").exists());
+			assertFalse(new File(this.dir, "index.tmp").exists());
+		}
+		finally {
+			r.close();
+		}
+	}
+
+	private static void assertEntry (final TransferIndex.Entry entry, final long size, final long mtime, final String eTag) {
+		assertEquals(size, entry.getSize());
+		assertEquals(mtime, entry.getMtime());
+		assertEquals(eTag, entry.getETag());
+	}
+
+	private static void setLength (final File file, final long length) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+}